@@ -24,11 +24,35 @@ mkdir -p out/code
 mkdir -p out/test
 
 SOURCES=(
+    source/com/aletheiaware/perspective/Appearance.java
+    source/com/aletheiaware/perspective/History.java
     source/com/aletheiaware/perspective/Perspective.java
     source/com/aletheiaware/perspective/PerspectiveProto.java
+    source/com/aletheiaware/perspective/PreparedPuzzle.java
+    source/com/aletheiaware/perspective/PuzzleWriter.java
+    source/com/aletheiaware/perspective/Replay.java
+    source/com/aletheiaware/perspective/scene/AnimationScheduler.java
+    source/com/aletheiaware/perspective/scene/BlockMesher.java
     source/com/aletheiaware/perspective/scene/DropAnimation.java
+    source/com/aletheiaware/perspective/scene/FixedStepAnimation.java
+    source/com/aletheiaware/perspective/scene/MatrixPipeline.java
     source/com/aletheiaware/perspective/scene/RotateToAxisAnimation.java
+    source/com/aletheiaware/perspective/solver/Board.java
+    source/com/aletheiaware/perspective/solver/DropTable.java
+    source/com/aletheiaware/perspective/solver/Generator.java
+    source/com/aletheiaware/perspective/solver/HintTable.java
+    source/com/aletheiaware/perspective/solver/IdaSolver.java
+    source/com/aletheiaware/perspective/solver/SolvabilityChecker.java
+    source/com/aletheiaware/perspective/solver/Solver.java
+    source/com/aletheiaware/perspective/solver/Symmetry.java
+    source/com/aletheiaware/perspective/solver/Trajectory.java
+    source/com/aletheiaware/perspective/utils/LoadGenerator.java
+    source/com/aletheiaware/perspective/utils/MoveLog.java
+    source/com/aletheiaware/perspective/utils/OccupancyGrid.java
+    source/com/aletheiaware/perspective/utils/Orientation.java
     source/com/aletheiaware/perspective/utils/PerspectiveUtils.java
+    source/com/aletheiaware/perspective/utils/SpatialIndex.java
+    source/com/aletheiaware/perspective/utils/WorldLoader.java
 )
 
 javac -cp ../AletheiaWareCommonJava/out/AletheiaWareCommonJava.jar:../JoyJava/out/JoyJava.jar:../JavaCommon/libs/protobuf-java-3.9.1.jar ${SOURCES[*]} -d out/code
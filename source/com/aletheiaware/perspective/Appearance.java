@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective;
+
+import com.aletheiaware.perspective.scene.BlockMesher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// The shader, mesh, colour, texture and material of an element. Each combination is interned once in the Table of the
+// Perspective it is used in and elements refer to it, so a puzzle of thousands of identical blocks holds one appearance
+// rather than thousands of copies of the same references. Ids are small, dense and never reused within a Table, so
+// renderers can batch by them. A Table only grows with the combinations its Perspective has seen, and goes with it.
+public final class Appearance {
+
+    public static final class Table {
+        private final Map<Appearance, Appearance> interned = new HashMap<>();
+        private volatile Appearance last;// Runs of elements usually share an appearance
+
+        public Appearance intern(String shader, String mesh, String colour, String texture, String material) {
+            Appearance a = last;
+            if (a != null && a.matches(shader, mesh, colour, texture, material)) {
+                return a;
+            }
+            Appearance key = new Appearance(-1, shader, mesh, colour, texture, material);
+            synchronized (interned) {
+                a = interned.get(key);
+                if (a == null) {
+                    a = new Appearance(interned.size(), shader, mesh, colour, texture, material);
+                    interned.put(a, a);
+                }
+            }
+            last = a;
+            return a;
+        }
+
+        public int getCount() {
+            synchronized (interned) {
+                return interned.size();
+            }
+        }
+    }
+
+    public final int id;
+    public final String shader;
+    public final String mesh;
+    public final String colour;
+    public final String texture;
+    public final String material;
+    private final int hash;
+    private String groupKey;
+
+    private Appearance(int id, String shader, String mesh, String colour, String texture, String material) {
+        this.id = id;
+        this.shader = shader;
+        this.mesh = mesh;
+        this.colour = colour;
+        this.texture = texture;
+        this.material = material;
+        this.hash = Objects.hash(shader, mesh, colour, texture, material);
+    }
+
+    public boolean matches(String shader, String mesh, String colour, String texture, String material) {
+        return Objects.equals(this.shader, shader)
+            && Objects.equals(this.mesh, mesh)
+            && Objects.equals(this.colour, colour)
+            && Objects.equals(this.texture, texture)
+            && Objects.equals(this.material, material);
+    }
+
+    // Key the BlockMesher groups faces of this appearance under, built once
+    public String getGroupKey() {
+        String k = groupKey;
+        if (k == null) {
+            k = BlockMesher.getGroupKey(shader, colour, texture, material);
+            groupKey = k;
+        }
+        return k;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Appearance)) {
+            return false;
+        }
+        Appearance a = (Appearance) o;
+        return hash == a.hash && matches(a.shader, a.mesh, a.colour, a.texture, a.material);
+    }
+
+    @Override
+    public String toString() {
+        return shader + " : " + mesh + " : " + colour + " : " + texture + " : " + material;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.Perspective.Element;
+import com.aletheiaware.perspective.utils.Orientation;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Undo and redo for Perspective. Game states are kept as fixed size records in a ring of ints, so any of them can be
+// restored without decoding those before it; the orientation, flags, score, number of moves and the packed cell of
+// each sphere, in the order their names were first seen. A record is 3 ints plus 2 for each sphere, and at least 4 to
+// fit an editor change, so with 4 spheres 44 bytes and the default 1024 records 44 KB, plus a Change reference for
+// each. Pass a smaller capacity to keep less. The ring starts small and grows as records are added, and widens if
+// more spheres are added than it has room for. Once full the oldest records are overwritten.
+// In the editor added and removed elements are recorded too, so they can be removed and added back.
+public class History {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_SPHERES = 4;
+
+    private static final int INITIAL_RECORDS = 16;
+
+    private static final int KIND_STATE = 0;
+    private static final int KIND_ADD = 1;
+    private static final int KIND_REMOVE = 2;
+
+    private static final int FLAG_GAME_OVER = 1 << 2;
+    private static final int FLAG_GAME_WON = 1 << 3;
+
+    private static final int HEADER = 3;// Header, score, move count
+    private static final long ABSENT = -1;// Cell of a sphere not in the puzzle at the time, packCell is never negative
+
+    // Type, name and appearance of an element added or removed in the editor, and the portal it was linked to
+    private static final class Change {
+        final String type;
+        final String name;
+        final Appearance appearance;
+        Vector link;
+
+        Change(Element e, Vector link) {
+            type = e.type;
+            name = e.name;
+            appearance = e.appearance;
+            this.link = link;
+        }
+    }
+
+    private final Perspective perspective;
+    private final int capacity;
+    private int width;// Ints in a record
+    private int[] ring;
+    private Change[] changes;
+    // Sphere names in the order their cells are recorded
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndices = new HashMap<>();
+    private final float[] temp = new float[4];
+    private int first;// Record holding the oldest entry
+    private int size;// Entries held
+    private int cursor;// Entries up to and including the current state
+    private boolean restoring;
+
+    public History(Perspective perspective) {
+        this(perspective, DEFAULT_CAPACITY, DEFAULT_SPHERES);
+    }
+
+    public History(Perspective perspective, int capacity, int spheres) {
+        this.perspective = perspective;
+        this.capacity = capacity;
+        this.width = width(spheres);
+        int records = Math.min(capacity, INITIAL_RECORDS);
+        this.ring = new int[records * width];
+        this.changes = new Change[records];
+    }
+
+    private static int width(int spheres) {
+        return HEADER + Math.max(1, spheres * 2);// Room for a change's cell
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean canUndo() {
+        return cursor > 1;
+    }
+
+    public boolean canRedo() {
+        return cursor < size;
+    }
+
+    // Forgets everything and records the current state as the start
+    public void reset() {
+        names.clear();
+        nameIndices.clear();
+        for (Element e : perspective.getElements("sphere")) {
+            getNameIndex(e.name);
+        }
+        int w = width(names.size());
+        if (w != width) {
+            width = w;
+            ring = new int[changes.length * width];
+        }
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = null;
+        }
+        first = 0;
+        size = 0;
+        cursor = 0;
+        record();
+    }
+
+    // Records the current game state, call once a drop or rotation has settled. Not while a drop is falling, the
+    // spheres are between cells and the drop records the state once it lands
+    public void record() {
+        if (restoring || perspective.isDropping()) {
+            return;
+        }
+        List<Element> spheres = perspective.getElements("sphere");
+        for (Element e : spheres) {
+            getNameIndex(e.name);
+        }
+        int count = names.size();
+        widen(width(count));
+        int o = append(KIND_STATE, null);
+        int header = KIND_STATE | (Orientation.getNearest(perspective.mainRotation, temp) << 4);
+        if (perspective.gameOver) {
+            header |= FLAG_GAME_OVER;
+        }
+        if (perspective.gameWon) {
+            header |= FLAG_GAME_WON;
+        }
+        header |= count << 9;
+        ring[o] = header;
+        ring[o + 1] = perspective.moves.getScore();
+        ring[o + 2] = perspective.moves.getMoveCount();
+        for (int i = 0; i < count; i++) {
+            setCell(o, i, ABSENT);
+        }
+        for (Element e : spheres) {
+            setCell(o, nameIndices.get(e.name), PerspectiveUtils.packCell(e.location));
+        }
+    }
+
+    private int getNameIndex(String name) {
+        Integer index = nameIndices.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndices.put(name, index);
+        }
+        return index;
+    }
+
+    private void setCell(int o, int index, long cell) {
+        ring[o + HEADER + index * 2] = (int) (cell >>> 32);
+        ring[o + HEADER + index * 2 + 1] = (int) cell;
+    }
+
+    private long getCell(int o, int index) {
+        return ((long) ring[o + HEADER + index * 2] << 32) | (ring[o + HEADER + index * 2 + 1] & 0xFFFFFFFFL);
+    }
+
+    public void recordAdd(Element element) {
+        recordChange(KIND_ADD, element, null);
+    }
+
+    // The link is the portal a removed portal was linked to, which removing it unlinked
+    public void recordRemove(Element element, Vector link) {
+        recordChange(KIND_REMOVE, element, link);
+    }
+
+    private void recordChange(int kind, Element element, Vector link) {
+        if (restoring || element.location == null) {
+            return;
+        }
+        int o = append(kind, new Change(element, link == null ? null : new Vector(link.getX(), link.getY(), link.getZ())));
+        ring[o] = kind;
+        ring[o + 1] = Math.round(element.location.getX());
+        ring[o + 2] = Math.round(element.location.getY());
+        ring[o + 3] = Math.round(element.location.getZ());
+    }
+
+    // Drops anything which could have been redone, makes room and returns the offset of the new record
+    private int append(int kind, Change change) {
+        size = cursor;
+        if (size == capacity) {
+            first = (first + 1) % capacity;
+            size--;
+            cursor--;
+        } else if (size == changes.length) {
+            // Not yet full so the oldest is at the start
+            int records = Math.min(capacity, size * 2);
+            ring = Arrays.copyOf(ring, records * width);
+            changes = Arrays.copyOf(changes, records);
+        }
+        int r = (first + size) % capacity;
+        changes[r] = change;
+        size++;
+        cursor++;
+        return r * width;
+    }
+
+    // Spreads the records out to the given width, if they are narrower
+    private void widen(int w) {
+        if (w <= width) {
+            return;
+        }
+        int[] wider = new int[changes.length * w];
+        for (int r = 0; r < changes.length; r++) {
+            System.arraycopy(ring, r * width, wider, r * w, width);
+        }
+        ring = wider;
+        width = w;
+    }
+
+    private int offset(int entry) {
+        return ((first + entry) % capacity) * width;
+    }
+
+    public boolean undo() {
+        if (!canUndo() || perspective.isAnimating()) {
+            return false;
+        }
+        int entry = cursor - 1;
+        int o = offset(entry);
+        switch (ring[o] & 3) {
+            case KIND_ADD:
+                apply(entry, false);
+                break;
+            case KIND_REMOVE:
+                apply(entry, true);
+                break;
+            default:
+                // Go back to the state before, ignoring editor changes in between
+                int previous = entry - 1;
+                while (previous >= 0 && (ring[offset(previous)] & 3) != KIND_STATE) {
+                    previous--;
+                }
+                if (previous < 0) {
+                    return false;
+                }
+                restore(offset(previous));
+        }
+        cursor--;
+        return true;
+    }
+
+    public boolean redo() {
+        if (!canRedo() || perspective.isAnimating()) {
+            return false;
+        }
+        int entry = cursor;
+        int o = offset(entry);
+        switch (ring[o] & 3) {
+            case KIND_ADD:
+                apply(entry, true);
+                break;
+            case KIND_REMOVE:
+                apply(entry, false);
+                break;
+            default:
+                restore(o);
+        }
+        cursor++;
+        return true;
+    }
+
+    // Adds or removes the element recorded in the entry
+    private void apply(int entry, boolean add) {
+        int o = offset(entry);
+        Change c = changes[(first + entry) % capacity];
+        restoring = true;
+        try {
+            if (add) {
+                Vector location = new Vector(ring[o + 1], ring[o + 2], ring[o + 3]);
+                perspective.addElement(c.name, c.type, location, c.appearance);
+                if (c.link != null) {
+                    Element other = perspective.getElement(c.link);
+                    if (other != null && "portal".equals(other.type)) {
+                        perspective.linkPortals(location, other.location);
+                    }
+                }
+            } else {
+                // By name, as something else may have been put in the cell since
+                for (Element e : perspective.getElements(c.type)) {
+                    if (c.name.equals(e.name)) {
+                        // Removing a portal unlinks it, remember the link so adding it back can restore it
+                        Vector link = perspective.linkedPortals.get(e.location);
+                        c.link = link == null ? null : new Vector(link.getX(), link.getY(), link.getZ());
+                        perspective.removeElement(e);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            restoring = false;
+        }
+    }
+
+    // Puts the game back into the recorded state, allocating nothing
+    private void restore(int o) {
+        int header = ring[o];
+        synchronized (perspective.scene) {
+            Orientation.set(perspective.mainRotation, (header >> 4) & 0x1F);
+            if (!perspective.inverseRotation.makeInverse(perspective.mainRotation)) {
+                System.err.println("Matrix invert failed");
+            }
+            perspective.matrices.invalidateRotation();
+            perspective.gameOver = (header & FLAG_GAME_OVER) != 0;
+            perspective.gameWon = (header & FLAG_GAME_WON) != 0;
+            perspective.moves.setScore(ring[o + 1]);
+            if (!perspective.moves.restore(ring[o + 2])) {
+                System.err.println("Moves no longer held: " + ring[o + 2]);
+                perspective.moves.truncate(ring[o + 2]);
+            }
+            // By name, as removing spheres in the editor reorders the list
+            int count = header >>> 9;
+            for (Element e : perspective.getElements("sphere")) {
+                Integer index = nameIndices.get(e.name);
+                if (index == null || index >= count) {
+                    continue;
+                }
+                long cell = getCell(o, index);
+                if (cell != ABSENT) {
+                    e.location.set(PerspectiveUtils.unpackX(cell), PerspectiveUtils.unpackY(cell), PerspectiveUtils.unpackZ(cell));
+                }
+            }
+            perspective.onSpheresMoved();
+        }
+    }
+}
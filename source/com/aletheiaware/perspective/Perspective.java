@@ -16,6 +16,7 @@
 
 package com.aletheiaware.perspective;
 
+import com.aletheiaware.joy.scene.Animation;
 import com.aletheiaware.joy.scene.Matrix;
 import com.aletheiaware.joy.scene.RotationAnimation;
 import com.aletheiaware.joy.scene.ScaleNode;
@@ -28,7 +29,6 @@ import com.aletheiaware.perspective.PerspectiveProto.Block;
 import com.aletheiaware.perspective.PerspectiveProto.Dialog;
 import com.aletheiaware.perspective.PerspectiveProto.Location;
 import com.aletheiaware.perspective.PerspectiveProto.Goal;
-import com.aletheiaware.perspective.PerspectiveProto.Move;
 import com.aletheiaware.perspective.PerspectiveProto.Outline;
 import com.aletheiaware.perspective.PerspectiveProto.Portal;
 import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
@@ -36,21 +36,51 @@ import com.aletheiaware.perspective.PerspectiveProto.Scenery;
 import com.aletheiaware.perspective.PerspectiveProto.Sky;
 import com.aletheiaware.perspective.PerspectiveProto.Sphere;
 import com.aletheiaware.perspective.PerspectiveProto.Solution;
+import com.aletheiaware.perspective.PerspectiveProto.World;
+import com.aletheiaware.perspective.scene.AnimationScheduler;
+import com.aletheiaware.perspective.scene.BlockMesher;
 import com.aletheiaware.perspective.scene.DropAnimation;
+import com.aletheiaware.perspective.scene.MatrixPipeline;
 import com.aletheiaware.perspective.scene.RotateToAxisAnimation;
+import com.aletheiaware.perspective.solver.Board;
+import com.aletheiaware.perspective.solver.HintTable;
+import com.aletheiaware.perspective.solver.SolvabilityChecker;
+import com.aletheiaware.perspective.solver.Solver;
+import com.aletheiaware.perspective.solver.Symmetry;
+import com.aletheiaware.perspective.solver.Trajectory;
+import com.aletheiaware.perspective.utils.MoveLog;
+import com.aletheiaware.perspective.utils.OccupancyGrid;
+import com.aletheiaware.perspective.utils.Orientation;
 import com.aletheiaware.perspective.utils.PerspectiveUtils;
+import com.aletheiaware.perspective.utils.SpatialIndex;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class Perspective {
 
+    private static final int STATE_VERSION = 1;
+
     public interface Callback {
         void onDropComplete();
         void onRotateComplete();
@@ -60,6 +90,85 @@ public class Perspective {
         void addSceneGraphNode(String shader, String name, String type, String mesh, String colour, String texture, String material);
     }
 
+    // Callbacks implementing this receive elements sharing the same attributes as a single group, so they can be drawn instanced
+    public interface BatchCallback extends Callback {
+        void addSceneGraphNodes(List<ElementGroup> groups);
+    }
+
+    // Lets hosts render on demand, drawing only while something is changing
+    public interface FrameListener {
+        void onAnimationStart();
+        void onAnimationEnd();
+        void onInvalidate();
+    }
+
+    // Receives where the spheres would go if dropped now, each time the axis they would drop along changes
+    public interface TrajectoryListener {
+        void onTrajectory(Trajectory trajectory);
+    }
+
+    public static class ElementGroup {
+        public int appearance;// Id of the shared Appearance
+        public String shader;
+        public String type;
+        public String mesh;
+        public String colour;
+        public String texture;
+        public String material;
+        public final List<String> names = new ArrayList<>();
+        // Instance positions as x, y, z triples, empty for outline and sky
+        public float[] positions = new float[0];
+        public int count;
+
+        void add(String name, Vector location) {
+            names.add(name);
+            if (location != null) {
+                if (positions.length < (count + 1) * 3) {
+                    positions = Arrays.copyOf(positions, Math.max(12, positions.length * 2));
+                }
+                positions[count * 3] = location.getX();
+                positions[count * 3 + 1] = location.getY();
+                positions[count * 3 + 2] = location.getZ();
+                count++;
+            }
+        }
+    }
+
+    // Next drop towards a win; turn the given number of quarter turns about the axis, then drop
+    public static class Hint {
+        public final int direction;// Index into Board.DIRECTIONS the spheres should fall along
+        public final int distance;// Drops remaining to a win, including this one
+        public final int turns;// Zero to drop straight away
+        public final int x;// Axis of the turns, in view coordinates
+        public final int y;
+        public final int z;
+
+        public Hint(int direction, int distance, int turns, int x, int y, int z) {
+            this.direction = direction;
+            this.distance = distance;
+            this.turns = turns;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public String toString() {
+            return "Hint " + direction + " " + distance + " " + turns + " (" + x + "," + y + "," + z + ")";
+        }
+    }
+
+    // Hint table for a puzzle and the symmetry taking the puzzle to the one the table was built for
+    private static class HintSource {
+        final HintTable table;
+        final int symmetry;
+
+        HintSource(HintTable table, int symmetry) {
+            this.table = table;
+            this.symmetry = symmetry;
+        }
+    }
+
     public final float[] down = new float[] {0, -1, 0, 1};
     public final float[] up = new float[] {0, 1, 0, 1};
     public final float[] cameraFrustum = new float[2];
@@ -85,7 +194,7 @@ public class Perspective {
     public int size;// Outer dimension of puzzle cube
 
     public Puzzle puzzle;
-    public Solution.Builder solution;
+    public final MoveLog moves = new MoveLog();
     public Map<String, SceneGraphNode> scenegraphs = new HashMap<>();
     public boolean gameOver = false;
     public boolean gameWon = false;
@@ -94,19 +203,63 @@ public class Perspective {
 
     public static class Element {
         public SceneGraphNode root;
+        public Vector location;// Null for outline and sky
+        public int slot = -1;// Index into slotElements, reused once the element is removed
+        public long cell;// Packed cell the slot is indexed under
+        public int index = -1;// Position within the list of its type
+        public String type;
         public String name;
-        public String mesh;
-        public String colour;
-        public String texture;
-        public String material;
-        public String shader;
+        public Appearance appearance;// Shared with every element that looks the same
+
+        public Appearance getAppearance() {
+            return appearance;
+        }
     }
+    // Appearances of the elements, interned so elements that look the same share one
+    public final Appearance.Table appearances = new Appearance.Table();
     // Elements of the puzzle addressed type -> element
     public final Map<String, List<Element>> elements = new HashMap<>();
+    // Derived matrices, recomputed only when the camera, rotation or elements change
+    public final MatrixPipeline matrices = new MatrixPipeline(cameraEye, cameraLookAt, cameraUp, cameraFrustum, model, view, projection, mv, mvp);
+    // Packed cell -> slots of the elements at that cell, and slot -> element
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+    private Element[] slotElements = new Element[64];
+    private int slotCount;// Highest slot in use + 1
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
     // Holds portalA -> portalB and portalB -> portalA
     public final Map<Vector, Vector> linkedPortals = new HashMap<>();
+    // Locations of blocks and goals, kept up to date as elements are added and cleared
+    public OccupancyGrid blocks = new OccupancyGrid();
+    public OccupancyGrid goals = new OccupancyGrid();
     // Dialogs of the puzzle addressed name -> dialog
     public final Map<String, Dialog> dialogs = new HashMap<>();
+    private PuzzleWriter puzzleWriter;
+    private Map<Long, ElementGroup> batch;// Type and appearance id -> group
+    private final Map<String, Integer> batchTypes = new HashMap<>();
+    private BlockMesher mesher;
+    private SolvabilityChecker checker;
+    private History history;
+    private Puzzle hintPuzzle;
+    private HintTable hintTable;
+    private Future<HintSource> hintFuture;// Builds the table for hintPuzzle on the prefetch thread
+    private int hintSymmetry;
+    private boolean wasAnimating;
+    private FrameListener frameListener;
+    private TrajectoryListener trajectoryListener;
+    private Board trajectoryBoard;// Shares the block and goal grids
+    private final Trajectory[] trajectories = new Trajectory[Board.DIRECTION_COUNT];// By drop axis, until anything moves
+    private final Board.Path trajectoryPath = new Board.Path();
+    private int trajectoryAxis = Orientation.UNKNOWN;// Axis of the last trajectory sent
+    private boolean deferInvalidate;
+    private int animations;
+    // Runs drops alongside rotations, rotations are serialized as they all update the main rotation
+    public final AnimationScheduler animator = new AnimationScheduler();
+    private Animation lastRotation;
+    private Animation lastDrop;
+    private ExecutorService prefetchExecutor;
+    private Puzzle prefetchPuzzle;
+    private Future<PreparedPuzzle> prefetchFuture;
 
     public Perspective(Callback callback, Scene scene, int size) {
         this.callback = callback;
@@ -174,6 +327,7 @@ public class Perspective {
     public void setSize(int size) {
         this.size = size;
         System.out.println("Size: " + size);
+        invalidateTrajectories();
 
         // Set the outline scale
         outlineScale.set(size, size, size);
@@ -206,10 +360,13 @@ public class Perspective {
         cameraFrustum[0] = size / 2f;
         cameraFrustum[1] = square;
         System.out.println("Frustum: " + Arrays.toString(cameraFrustum));
+        matrices.invalidateCamera();
+        invalidate();
     }
 
+    // Snapshot of the score and moves so far, later moves do not change it
     public Solution getSolution() {
-        return solution.build();
+        return moves.toSolution();
     }
 
     public boolean isGameOver() {
@@ -236,20 +393,17 @@ public class Perspective {
         if (shader == null || shader.isEmpty()) {
             shader = getDefaultShader();
         }
-        System.out.println("Outline " + shader + " : " + mesh + " : " + colour + " : " + texture + " : " + material);
+        Appearance appearance = appearances.intern(shader, mesh, colour, texture, material);
+        System.out.println("Outline " + appearance);
         String name = "o0";
         String type = "outline";
-        callback.addSceneGraphNode(shader, name, type, mesh, colour, texture, material);
+        addSceneGraphNode(name, type, null, appearance);
 
-        List<Element> es = getElements(type);
         Element element = new Element();
         element.name = name;
-        element.mesh = mesh;
-        element.colour = colour;
-        element.texture = texture;
-        element.material = material;
-        element.shader = shader;
-        es.add(element);
+        element.appearance = appearance;
+        addToElements(type, element);
+        invalidate();
     }
 
     public void addSky(String shader, String name, String mesh, String colour, String texture, String material) {
@@ -259,38 +413,99 @@ public class Perspective {
         if (shader == null || shader.isEmpty()) {
             shader = getDefaultShader();
         }
-        System.out.println("Sky " + shader + " : " + mesh + " : " + colour + " : " + texture + " : " + material);
+        Appearance appearance = appearances.intern(shader, mesh, colour, texture, material);
+        System.out.println("Sky " + appearance);
         String type = "sky";
-        callback.addSceneGraphNode(shader, name, type, mesh, colour, texture, material);
+        addSceneGraphNode(name, type, null, appearance);
 
-        List<Element> es = getElements(type);
         Element element = new Element();
         element.name = name;
-        element.mesh = mesh;
-        element.colour = colour;
-        element.texture = texture;
-        element.material = material;
-        element.shader = shader;
-        es.add(element);
+        element.appearance = appearance;
+        addToElements(type, element);
+        invalidate();
     }
 
     public void addElement(String shader, String name, String type, String mesh, Vector location, String colour, String texture, String material) {
         if (shader == null || shader.isEmpty()) {
             shader = getDefaultShader();
         }
-        System.out.println("Adding " + shader + " : " + type + " : " + name + " : " + mesh + " : " + location + " : " + colour + " : " + texture + " : " + material);
+        addElement(name, type, location, appearances.intern(shader, mesh, colour, texture, material));
+    }
+
+    public void addElement(String name, String type, Vector location, Appearance appearance) {
         scene.putVector(name, location);
-        callback.addSceneGraphNode(shader, name, type, mesh, colour, texture, material);
+        addSceneGraphNode(name, type, location, appearance);
+        switch (type) {
+            case "block":
+                blocks.add(location);
+                if (mesher != null) {
+                    mesher.addBlock(Math.round(location.getX()), Math.round(location.getY()), Math.round(location.getZ()), appearance.getGroupKey());
+                }
+                break;
+            case "goal":
+                goals.add(location);
+                break;
+        }
 
-        List<Element> es = getElements(type);
         Element element = new Element();
         element.name = name;
-        element.mesh = mesh;
-        element.colour = colour;
-        element.texture = texture;
-        element.material = material;
-        element.shader = shader;
-        es.add(element);
+        element.appearance = appearance;
+        element.location = location;
+        element.slot = allocateSlot();
+        addToElements(type, element);
+        // Imports reset the checker once they are done
+        if (checker != null && !deferInvalidate) {
+            checker.onElementAdded(type, location);
+        }
+        if (history != null && !deferInvalidate) {
+            history.recordAdd(element);
+        }
+        invalidateTrajectories();
+        invalidate();
+    }
+
+    // Between beginBatch and endBatch new elements are grouped and delivered to a BatchCallback all at once
+    public void beginBatch() {
+        if (batch == null && callback instanceof BatchCallback) {
+            batch = new LinkedHashMap<>();
+        }
+    }
+
+    public void endBatch() {
+        if (batch != null) {
+            List<ElementGroup> groups = new ArrayList<>(batch.values());
+            batch = null;
+            if (!groups.isEmpty()) {
+                System.out.println("Adding " + groups.size() + " groups");
+                ((BatchCallback) callback).addSceneGraphNodes(groups);
+            }
+        }
+    }
+
+    private void addSceneGraphNode(String name, String type, Vector location, Appearance appearance) {
+        if (batch == null) {
+            callback.addSceneGraphNode(appearance.shader, name, type, appearance.mesh, appearance.colour, appearance.texture, appearance.material);
+            return;
+        }
+        Integer t = batchTypes.get(type);
+        if (t == null) {
+            t = batchTypes.size();
+            batchTypes.put(type, t);
+        }
+        Long key = ((long) t << 32) | appearance.id;
+        ElementGroup group = batch.get(key);
+        if (group == null) {
+            group = new ElementGroup();
+            group.appearance = appearance.id;
+            group.shader = appearance.shader;
+            group.type = type;
+            group.mesh = appearance.mesh;
+            group.colour = appearance.colour;
+            group.texture = appearance.texture;
+            group.material = appearance.material;
+            batch.put(key, group);
+        }
+        group.add(name, location);
     }
 
     public void addDialog(Dialog dialog, Vector location) {
@@ -298,89 +513,775 @@ public class Perspective {
         System.out.println("Adding " + name + " : " + dialog + " : " + location);
         scene.putVector(name, location);
         dialogs.put(name, dialog);
+        invalidate();
     }
 
     public void clearLocation(Vector location) {
         System.out.println("Clearing " + location);
-        Element element = null;
-        for (String t : elements.keySet()) {
-            List<Element> es = getElements(t);
-            for (Element e : es) {
-                Vector v = scene.getVector(e.name);
-                if (location.equals(v)) {
-                    Vector l = linkedPortals.remove(v);
-                    if (l != null) {
-                        linkedPortals.remove(l);
+        Element element = getElement(location);
+        if (element == null) {
+            System.err.println("No elements found at " + location);
+            return;
+        }
+        removeElement(element);
+    }
+
+    // Clears every element within the box between the given corners, inclusive. Returns the number cleared
+    public int clearRegion(Vector from, Vector to) {
+        int x0 = Math.round(Math.min(from.getX(), to.getX()));
+        int y0 = Math.round(Math.min(from.getY(), to.getY()));
+        int z0 = Math.round(Math.min(from.getZ(), to.getZ()));
+        int x1 = Math.round(Math.max(from.getX(), to.getX()));
+        int y1 = Math.round(Math.max(from.getY(), to.getY()));
+        int z1 = Math.round(Math.max(from.getZ(), to.getZ()));
+        System.out.println("Clearing " + x0 + "," + y0 + "," + z0 + " to " + x1 + "," + y1 + "," + z1);
+        List<Element> found = new ArrayList<>();
+        long volume = (long) (x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+        int count = slotCount;
+        if (volume <= count) {
+            for (int x = x0; x <= x1; x++) {
+                for (int y = y0; y <= y1; y++) {
+                    for (int z = z0; z <= z1; z++) {
+                        for (int s = spatialIndex.get(PerspectiveUtils.packCell(x, y, z)); s != SpatialIndex.NONE; s = spatialIndex.next(s)) {
+                            found.add(slotElements[s]);
+                        }
                     }
-                    element = e;
-                    break;
                 }
             }
-            if (element != null) {
-                es.remove(element);
-                if (!scenegraphs.get(element.shader).removeChild(element.root)) {
-                    System.err.println("Could not remove " + element.name);
+        } else {
+            // Box is bigger than the puzzle, cheaper to test each element
+            for (int s = 0; s < count; s++) {
+                Element e = slotElements[s];
+                if (e != null) {
+                    long c = e.cell;
+                    int x = PerspectiveUtils.unpackX(c);
+                    int y = PerspectiveUtils.unpackY(c);
+                    int z = PerspectiveUtils.unpackZ(c);
+                    if (x >= x0 && x <= x1 && y >= y0 && y <= y1 && z >= z0 && z <= z1) {
+                        found.add(e);
+                    }
                 }
-                return;
             }
         }
-        System.err.println("No elements found at " + location);
+        for (Element e : found) {
+            removeElement(e);
+        }
+        return found.size();
+    }
+
+    // Returns the element at the given location, or null
+    public Element getElement(Vector location) {
+        for (int s = spatialIndex.get(PerspectiveUtils.packCell(location)); s != SpatialIndex.NONE; s = spatialIndex.next(s)) {
+            Element e = slotElements[s];
+            if (e != null && location.equals(e.location)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    public void removeElement(Element element) {
+        Vector v = element.location;
+        Vector l = null;
+        if (v != null) {
+            l = linkedPortals.remove(v);
+            if (l != null) {
+                linkedPortals.remove(l);
+            }
+        }
+        removeFromElements(element);
+        switch (element.type) {
+            case "block":
+                blocks.remove(v);
+                if (mesher != null) {
+                    mesher.removeBlock(Math.round(v.getX()), Math.round(v.getY()), Math.round(v.getZ()));
+                }
+                break;
+            case "goal":
+                goals.remove(v);
+                break;
+        }
+        removeSceneGraphNode(element);
+        if (checker != null && v != null) {
+            checker.onElementRemoved(element.type, v);
+        }
+        if (history != null) {
+            history.recordRemove(element, l);
+        }
+        invalidateTrajectories();
+        invalidate();
+    }
+
+    public void linkPortals(Vector a, Vector b) {
+        linkedPortals.put(a, b);
+        linkedPortals.put(b, a);
+        if (checker != null) {
+            checker.onPortalsLinked(a, b);
+        }
+        invalidateTrajectories();
+    }
+
+    private void addToElements(String type, Element element) {
+        List<Element> es = getElements(type);
+        element.type = type;
+        element.index = es.size();
+        es.add(element);
+        if (element.slot >= 0) {
+            indexElement(element);
+        }
+    }
+
+    // Swaps the last element of the same type into its place so removal is constant time
+    private void removeFromElements(Element element) {
+        List<Element> es = getElements(element.type);
+        int i = element.index;
+        if (i < 0 || i >= es.size() || es.get(i) != element) {
+            es.remove(element);
+        } else {
+            Element last = es.remove(es.size() - 1);
+            if (last != element) {
+                es.set(i, last);
+                last.index = i;
+            }
+        }
+        element.index = -1;
+    }
+
+    private int allocateSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        return slotCount++;
+    }
+
+    private void releaseSlot(int slot) {
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    private void indexElement(Element element) {
+        if (element.slot >= slotElements.length) {
+            slotElements = Arrays.copyOf(slotElements, Math.max(element.slot + 1, slotElements.length * 2));
+        }
+        element.cell = PerspectiveUtils.packCell(element.location);
+        spatialIndex.put(element.cell, element.slot);
+        slotElements[element.slot] = element;
+    }
+
+    private void unindexElement(Element element) {
+        spatialIndex.remove(element.cell, element.slot);
+        if (element.slot < slotElements.length && slotElements[element.slot] == element) {
+            slotElements[element.slot] = null;
+        }
+    }
+
+    // Call after moving sphere locations directly, eg when replaying or restoring a game
+    public void onSpheresMoved() {
+        reindexSpheres();
+        updateTrajectory();
+        invalidate();
+    }
+
+    // Spheres move when dropped so must be indexed at their new cells
+    private void reindexSpheres() {
+        Arrays.fill(trajectories, null);
+        trajectoryAxis = Orientation.UNKNOWN;
+        List<Element> spheres = elements.get("sphere");
+        if (spheres != null) {
+            for (Element e : spheres) {
+                if (e.slot >= 0 && e.cell != PerspectiveUtils.packCell(e.location)) {
+                    unindexElement(e);
+                    indexElement(e);
+                }
+            }
+        }
+    }
+
+    private void removeSceneGraphNode(Element element) {
+        if (element.slot >= 0) {
+            unindexElement(element);
+            releaseSlot(element.slot);
+            element.slot = -1;
+        }
+        SceneGraphNode node = scenegraphs.get(element.getAppearance().shader);
+        if (node == null || !node.removeChild(element.root)) {
+            System.err.println("Could not remove " + element.name);
+        }
     }
 
     public void clearAllLocations() {
         System.out.println("Clearing all locations");
         elements.clear();
         linkedPortals.clear();
+        blocks.clear();
+        goals.clear();
+        slotCount = 0;
+        freeSlotCount = 0;
+        spatialIndex.clear();
+        Arrays.fill(slotElements, null);
+        if (mesher != null) {
+            mesher.clear();
+        }
         for (SceneGraphNode scene : scenegraphs.values()) {
             scene.clear();
         }
+        if (checker != null) {
+            checker.reset(new Board(size));
+        }
+        invalidateTrajectories();
+        invalidate();
     }
 
     public void importPuzzle(Puzzle puzzle) {
+        PreparedPuzzle prepared = null;
+        synchronized (this) {
+            if (prefetchFuture != null && prefetchPuzzle == puzzle) {
+                try {
+                    prepared = prefetchFuture.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            prefetchPuzzle = null;
+            prefetchFuture = null;
+        }
+        if (prepared == null || prepared.size != size) {
+            prepared = PreparedPuzzle.prepare(puzzle, size);
+        }
+        importPuzzle(prepared);
+    }
+
+    public void importPuzzle(PreparedPuzzle prepared) {
+        Puzzle puzzle = prepared.puzzle;
         System.out.println("Importing: " + puzzle);
         this.gameOver = false;
         this.gameWon = false;
         this.puzzle = puzzle;
-        this.solution = Solution.newBuilder();
+        moves.clear();
         model.makeIdentity();
         mainRotation.makeIdentity();
         inverseRotation.makeIdentity();
-        int half = size / 2;
+        matrices.invalidateModel();
+        matrices.invalidateRotation();
+        // Anything still animating belongs to the previous puzzle
+        cancelAnimations();
+
+        deferInvalidate = true;
+        try {
+            // Index the current elements so those unchanged by the new puzzle keep their scene graph nodes
+            Map<String, Element> previous = new HashMap<>();
+            for (Entry<String, List<Element>> e : elements.entrySet()) {
+                for (Element element : e.getValue()) {
+                    previous.put(e.getKey() + "/" + element.name, element);
+                }
+            }
+            elements.clear();
+            // Reused elements are indexed again as they are added back
+            spatialIndex.clear();
+            Arrays.fill(slotElements, null);
+            // Everything taken from the prepared puzzle is copied, as spheres move and edits change the grids, and the
+            // same prepared puzzle may be imported again to restart it
+            linkedPortals.clear();
+            for (Entry<Vector, Vector> e : prepared.linkedPortals.entrySet()) {
+                linkedPortals.put(copy(e.getKey()), copy(e.getValue()));
+            }
+            blocks = new OccupancyGrid(prepared.blocks);
+            goals = new OccupancyGrid(prepared.goals);
+            dialogs.clear();
+
+            beginBatch();
+            try {
+                for (PreparedPuzzle.Entry e : prepared.entries) {
+                    importElement(previous, e.shader, e.name, e.type, e.mesh, copy(e.location), e.colour, e.texture, e.material);
+                }
+            } finally {
+                endBatch();
+            }
+            for (int i = 0; i < prepared.dialogs.size(); i++) {
+                addDialog(prepared.dialogs.get(i), copy(prepared.dialogLocations.get(i)));
+            }
+
+            // Remove anything the new puzzle no longer contains
+            for (Element e : previous.values()) {
+                System.out.println("Removing " + e.name);
+                removeSceneGraphNode(e);
+            }
 
-        if (puzzle.hasOutline()) {
-            Outline o = puzzle.getOutline();
-            setOutline(o.getShader(), o.getMesh(), o.getColour(), o.getTexture(), o.getMaterial());
+            if (mesher != null) {
+                // Only chunks whose blocks actually changed get rebuilt
+                mesher.beginUpdate();
+                addMesherBlocks();
+                mesher.endUpdate();
+            }
+            if (checker != null) {
+                checker.reset(Board.of(this));
+            }
+            if (history != null) {
+                history.reset();
+            }
+        } finally {
+            // Even if the import failed part way, or the host would never hear of changes again
+            deferInvalidate = false;
         }
+        updateTrajectory();
+        invalidate();
+    }
 
-        for (Sky s : puzzle.getSkyList()) {
-            addSky(s.getShader(), s.getName(), s.getMesh(), s.getColour(), s.getTexture(), s.getMaterial());
+    private static Vector copy(Vector v) {
+        return v == null ? null : new Vector(v.getX(), v.getY(), v.getZ());
+    }
+
+    private void cancelAnimations() {
+        animator.cancelAll();
+        lastRotation = null;
+        lastDrop = null;
+        // One end for each start, so hosts counting them come back to idle
+        while (animations > 0) {
+            animations--;
+            if (frameListener != null) {
+                frameListener.onAnimationEnd();
+            }
         }
+    }
+
+    // True while a drop is scheduled or animating, until it lands the spheres are between cells
+    public boolean isDropping() {
+        return animator.isScheduled(lastDrop);
+    }
 
-        for (Block b : puzzle.getBlockList()) {
-            Vector v = PerspectiveUtils.locationToVector(b.getLocation()).cap(-half, half);
-            addElement(b.getShader(), b.getName(), "block", b.getMesh(), v, b.getColour(), b.getTexture(), b.getMaterial());
+    // Writes the game in progress; the orientation, the flags, the cell of each sphere and the moves. Settled states
+    // are written exactly, a rotation still animating is written as the orientation it is closest to. Spheres are
+    // only settled between drops, so this throws IllegalStateException while isDropping.
+    public void saveState(OutputStream out) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(buffer);
+        synchronized (scene) {
+            if (isDropping()) {
+                throw new IllegalStateException("Cannot save during a drop");
+            }
+            data.writeInt(STATE_VERSION);
+            data.writeInt(size);
+            data.writeByte(Orientation.getNearest(mainRotation, temp));
+            data.writeBoolean(gameOver);
+            data.writeBoolean(gameWon);
+            List<Element> spheres = getElements("sphere");
+            data.writeInt(spheres.size());
+            for (Element e : spheres) {
+                data.writeUTF(e.name);
+                data.writeLong(PerspectiveUtils.packCell(e.location));
+            }
+            byte[] log = moves.toCompact();
+            data.writeInt(log.length);
+            data.write(log);
         }
-        for (Goal g : puzzle.getGoalList()) {
-            Vector v = PerspectiveUtils.locationToVector(g.getLocation()).cap(-half, half);
-            addElement(g.getShader(), g.getName(), "goal", g.getMesh(), v, g.getColour(), g.getTexture(), g.getMaterial());
+        data.flush();
+        buffer.writeTo(out);
+    }
+
+    // Resumes a game written by saveState, the puzzle it was written from must already be imported
+    public void restoreState(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != STATE_VERSION) {
+            throw new IOException("Unsupported state version: " + version);
         }
-        for (Portal p : puzzle.getPortalList()) {
-            Vector v = PerspectiveUtils.locationToVector(p.getLocation()).cap(-half, half);
-            Vector l = PerspectiveUtils.locationToVector(p.getLink()).cap(-half, half);
-            addElement(p.getShader(), p.getName(), "portal", p.getMesh(), v, p.getColour(), p.getTexture(), p.getMaterial());
-            linkedPortals.put(v, l);
+        int s = data.readInt();
+        if (s != size) {
+            throw new IOException("State size " + s + " does not match " + size);
         }
-        for (Sphere s : puzzle.getSphereList()) {
-            Vector v = PerspectiveUtils.locationToVector(s.getLocation()).cap(1 - size, size - 1);
-            addElement(s.getShader(), s.getName(), "sphere", s.getMesh(), v, s.getColour(), s.getTexture(), s.getMaterial());
+        int orientation = data.readUnsignedByte();
+        if (orientation >= Orientation.COUNT) {
+            throw new IOException("Invalid orientation: " + orientation);
+        }
+        boolean over = data.readBoolean();
+        boolean won = data.readBoolean();
+        int count = data.readInt();
+        int expected;
+        synchronized (scene) {
+            expected = getElements("sphere").size();
         }
-        for (Dialog d : puzzle.getDialogList()) {
-            Vector v = PerspectiveUtils.locationToVector(d.getLocation()).cap(1 - size, size - 1);
-            addDialog(d, v);
+        if (count != expected) {
+            throw new IOException("State has " + count + " spheres, puzzle has " + expected);
         }
-        for (Scenery s : puzzle.getSceneryList()) {
-            Vector v = PerspectiveUtils.locationToVector(s.getLocation());// Don't cap scenery
-            addElement(s.getShader(), s.getName(), "scenery", s.getMesh(), v, s.getColour(), s.getTexture(), s.getMaterial());
+        String[] names = new String[count];
+        long[] cells = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = data.readUTF();
+            cells[i] = data.readLong();
+        }
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid move log length: " + length);
+        }
+        byte[] log = new byte[length];
+        data.readFully(log);
+        MoveLog restored = MoveLog.readCompact(log);
+        synchronized (scene) {
+            List<Element> spheres = getElements("sphere");
+            if (spheres.size() != count) {
+                throw new IOException("State has " + count + " spheres, puzzle has " + spheres.size());
+            }
+            Element[] matched = new Element[count];
+            for (int i = 0; i < count; i++) {
+                for (Element e : spheres) {
+                    if (e.name.equals(names[i])) {
+                        matched[i] = e;
+                        break;
+                    }
+                }
+                if (matched[i] == null) {
+                    throw new IOException("Unknown sphere: " + names[i]);
+                }
+            }
+            cancelAnimations();
+            Orientation.set(mainRotation, orientation);
+            if (!inverseRotation.makeInverse(mainRotation)) {
+                System.err.println("Matrix invert failed");
+            }
+            matrices.invalidateRotation();
+            for (int i = 0; i < count; i++) {
+                matched[i].location.set(PerspectiveUtils.unpackX(cells[i]), PerspectiveUtils.unpackY(cells[i]), PerspectiveUtils.unpackZ(cells[i]));
+            }
+            moves.set(restored);
+            gameOver = over;
+            gameWon = won;
+            if (checker != null) {
+                checker.reset(Board.of(this));
+            }
+            if (history != null) {
+                history.reset();
+            }
+            onSpheresMoved();
+        }
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        this.frameListener = listener;
+    }
+
+    public void setTrajectoryListener(TrajectoryListener listener) {
+        synchronized (scene) {
+            this.trajectoryListener = listener;
+            trajectoryAxis = Orientation.UNKNOWN;
+            updateTrajectory();
+        }
+    }
+
+    private void invalidateTrajectories() {
+        trajectoryBoard = null;
+        Arrays.fill(trajectories, null);
+        trajectoryAxis = Orientation.UNKNOWN;
+    }
+
+    // Sends the trajectory listener where the spheres would go if dropped now, if the axis they would drop along has
+    // changed. Trajectories are computed once per axis by leaping from cell to cell, not by stepping the animation
+    private void updateTrajectory() {
+        if (trajectoryListener == null || animator.isScheduled(lastDrop)) {
+            // Spheres are still falling, the drop sends a trajectory once they land
+            return;
+        }
+        if (!inverseRotation.makeInverse(mainRotation)) {
+            System.err.println("Matrix invert failed");
+            return;
+        }
+        inverseRotation.multiply(down, temp);
+        int axis = Orientation.getAxis(temp);
+        if (axis == trajectoryAxis) {
+            return;
+        }
+        trajectoryAxis = axis;
+        Trajectory trajectory = trajectories[axis];
+        if (trajectory == null) {
+            if (trajectoryBoard == null) {
+                trajectoryBoard = new Board(size, blocks, goals, new HashMap<Long, Long>());
+                for (Entry<Vector, Vector> e : linkedPortals.entrySet()) {
+                    trajectoryBoard.portals.put(PerspectiveUtils.packCell(e.getKey()), PerspectiveUtils.packCell(e.getValue()));
+                }
+            }
+            List<Element> ss = getElements("sphere");
+            long[] cells = new long[ss.size()];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = PerspectiveUtils.packCell(ss.get(i).location);
+            }
+            trajectory = Trajectory.of(trajectoryBoard, cells, axis, trajectoryPath);
+            trajectories[axis] = trajectory;
+        }
+        trajectoryListener.onTrajectory(trajectory);
+    }
+
+    public boolean isAnimating() {
+        return animations > 0;
+    }
+
+    // Signals that the visuals changed and a new frame should be drawn
+    public void invalidate() {
+        // Even while an import defers telling the host, the next updateFrame has to redraw
+        matrices.invalidateElements();
+        if (frameListener != null && !deferInvalidate) {
+            frameListener.onInvalidate();
+        }
+    }
+
+    private void onAnimationStart() {
+        animations++;
+        if (frameListener != null) {
+            frameListener.onAnimationStart();
+        }
+    }
+
+    private void onAnimationEnd() {
+        animations--;
+        if (frameListener != null) {
+            frameListener.onAnimationEnd();
+        }
+        invalidate();
+    }
+
+    // Brings all derived matrices up to date, returns true if the frame needs redrawing.
+    // Hosts which opt in with matrices.setDeriveCamera have the view and projection derived from the camera, and call
+    // matrices.setViewport when their surface changes
+    public boolean updateFrame() {
+        synchronized (scene) {
+            boolean animating = isAnimating();
+            if (animating || wasAnimating) {
+                // Animations rotate the puzzle or move spheres every tick, including the final one
+                matrices.invalidateRotation();
+            }
+            wasAnimating = animating;
+            return matrices.update();
+        }
+    }
+
+    public SolvabilityChecker getSolvabilityChecker() {
+        return checker;
+    }
+
+    // Keeps the checker up to date with every edit, starting from the current puzzle
+    public void setSolvabilityChecker(SolvabilityChecker checker) {
+        this.checker = checker;
+        if (checker != null) {
+            checker.reset(Board.of(this));
+        }
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    // Records every settled move and edit so they can be undone, starting from the current state
+    public void setHistory(History history) {
+        this.history = history;
+        if (history != null) {
+            history.reset();
+        }
+    }
+
+    // Answers hints for the current puzzle from the table, such as one read with HintTable.load, instead of the shared one
+    public void setHintTable(HintTable table) {
+        synchronized (scene) {
+            if (hintFuture != null) {
+                hintFuture.cancel(true);
+                hintFuture = null;
+            }
+            hintTable = null;
+            if (table == null || puzzle == null) {
+                hintPuzzle = null;
+                return;
+            }
+            hintPuzzle = puzzle;
+            hintFuture = submitHint(puzzle, size, table);
+        }
+    }
+
+    // Finds the symmetry, and builds the table unless one is given, on the prefetch thread
+    private Future<HintSource> submitHint(final Puzzle p, final int s, final HintTable table) {
+        return getPrefetchExecutor().submit(new Callable<HintSource>() {
+            @Override
+            public HintSource call() throws NoSuchAlgorithmException {
+                int symmetry = Symmetry.getCanonicalSymmetry(p, true);
+                if (table != null) {
+                    return new HintSource(table, symmetry);
+                }
+                // Stops the build if cancelled
+                HintTable t = HintTable.get(p, s, new Solver.Monitor() {
+                    @Override
+                    public boolean isCancelled() {
+                        return Thread.currentThread().isInterrupted();
+                    }
+                });
+                return t == null ? null : new HintSource(t, symmetry);
+            }
+        });
+    }
+
+    // Next best move from the current orientation and spheres, or null if no win can be reached from here.
+    // The first hint for a puzzle starts building its table in the background, unless one was set or shared
+    // beforehand, and returns null until it is ready so ask again later.
+    public Hint hint() {
+        synchronized (scene) {
+            if (puzzle == null || gameOver) {
+                return null;
+            }
+            if (hintPuzzle != puzzle) {
+                if (hintFuture != null) {
+                    hintFuture.cancel(true);
+                }
+                hintPuzzle = puzzle;
+                hintTable = null;
+                hintFuture = submitHint(puzzle, size, null);
+            }
+            if (hintTable == null) {
+                if (hintFuture == null || !hintFuture.isDone()) {
+                    return null;
+                }
+                try {
+                    HintSource source = hintFuture.get();
+                    if (source != null) {
+                        hintTable = source.table;
+                        hintSymmetry = source.symmetry;
+                    }
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    e.printStackTrace();
+                }
+                hintFuture = null;
+                if (hintTable == null) {
+                    return null;
+                }
+            }
+            List<Element> spheres = getElements("sphere");
+            long[] cells = new long[spheres.size()];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = PerspectiveUtils.packCell(spheres.get(i).location);
+            }
+            HintTable.canonicalize(hintSymmetry, cells);
+            int index = hintTable.find(cells);
+            int direction = hintTable.getDirection(index);
+            if (direction == HintTable.UNKNOWN) {
+                return null;
+            }
+            direction = Symmetry.applyDirection(Symmetry.inverse(hintSymmetry), direction);
+            int distance = hintTable.getDistance(index);
+            float[] v = new float[4];
+            if (!inverseRotation.makeInverse(mainRotation)) {
+                System.err.println("Matrix invert failed");
+                return null;
+            }
+            inverseRotation.multiply(down, v);
+            if (Orientation.getAxis(v) == direction) {
+                return new Hint(direction, distance, 0, 0, 0, 0);
+            }
+            // Where the direction points on screen, turning it onto down
+            int[] d = Board.DIRECTIONS[direction];
+            float[] w = new float[4];
+            v[0] = d[0];
+            v[1] = d[1];
+            v[2] = d[2];
+            v[3] = 0;
+            mainRotation.multiply(v, w);
+            if (w[1] > 0.5f) {
+                return new Hint(direction, distance, 2, 1, 0, 0);
+            }
+            // Cross product with down
+            return new Hint(direction, distance, 1, Math.round(w[2]), 0, Math.round(-w[0]));
+        }
+    }
+
+    public BlockMesher getBlockMesher() {
+        return mesher;
+    }
+
+    // Once set the mesher tracks every block added or cleared, hosts call rebuild before drawing its meshes
+    public void setBlockMesher(BlockMesher mesher) {
+        this.mesher = mesher;
+        if (mesher != null) {
+            mesher.clear();
+            addMesherBlocks();
+        }
+    }
+
+    private void addMesherBlocks() {
+        for (Element b : getElements("block")) {
+            Vector v = scene.getVector(b.name);
+            if (v != null) {
+                mesher.addBlock(Math.round(v.getX()), Math.round(v.getY()), Math.round(v.getZ()), b.getAppearance().getGroupKey());
+            }
+        }
+    }
+
+    // Prepares the given puzzle of the world in the background so a later importPuzzle of it only has to create scene graph nodes
+    public synchronized Future<PreparedPuzzle> prefetchPuzzle(World world, int number) {
+        final Puzzle puzzle = PerspectiveUtils.getPuzzle(world, number);
+        if (puzzle == null) {
+            return null;
+        }
+        if (prefetchFuture != null) {
+            if (prefetchPuzzle == puzzle) {
+                return prefetchFuture;
+            }
+            prefetchFuture.cancel(true);
+        }
+        final int s = size;
+        prefetchPuzzle = puzzle;
+        prefetchFuture = getPrefetchExecutor().submit(new Callable<PreparedPuzzle>() {
+            @Override
+            public PreparedPuzzle call() {
+                return PreparedPuzzle.prepare(puzzle, s);
+            }
+        });
+        return prefetchFuture;
+    }
+
+    // Background thread for preparing puzzles and building hint tables
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Perspective Prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    private void importElement(Map<String, Element> previous, String shader, String name, String type, String mesh, Vector location, String colour, String texture, String material) {
+        if (shader == null || shader.isEmpty()) {
+            shader = getDefaultShader();
+        }
+        Appearance appearance = appearances.intern(shader, mesh, colour, texture, material);
+        Element element = previous.remove(type + "/" + name);
+        if (element != null) {
+            if (element.appearance == appearance) {
+                // Reuse the existing node, only moving it if needed
+                if (location != null) {
+                    Vector v = scene.getVector(name);
+                    if (v == null) {
+                        scene.putVector(name, location);
+                        v = location;
+                    } else if (!v.equals(location)) {
+                        v.set(location);
+                    }
+                    element.location = v;
+                }
+                addToElements(type, element);
+                return;
+            }
+            removeSceneGraphNode(element);
+        }
+        switch (type) {
+            case "outline":
+                setOutline(shader, mesh, colour, texture, material);
+                break;
+            case "sky":
+                addSky(shader, name, mesh, colour, texture, material);
+                break;
+            default:
+                addElement(name, type, location, appearance);
         }
     }
 
@@ -389,86 +1290,92 @@ public class Perspective {
         List<Element> outlines = getElements("outline");
         if (outlines != null && !outlines.isEmpty()) {
             for (Element o : outlines) {
+                Appearance a = o.getAppearance();
                 pb.setOutline(Outline.newBuilder()
-                    .setMesh(o.mesh)
-                    .setColour(o.colour)
-                    .setTexture(o.texture)
-                    .setMaterial(o.material)
-                    .setShader(o.shader));
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         List<Element> skys = getElements("sky");
         if (skys != null && !skys.isEmpty()) {
             for (Element s : skys) {
+                Appearance a = s.getAppearance();
                 pb.addSky(Sky.newBuilder()
                     .setName(s.name)
-                    .setMesh(s.mesh)
-                    .setColour(s.colour)
-                    .setTexture(s.texture)
-                    .setMaterial(s.material)
-                    .setShader(s.shader));
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         List<Element> blocks = getElements("block");
         if (blocks != null) {
             for (Element b : blocks) {
+                Appearance a = b.getAppearance();
                 Vector v = scene.getVector(b.name);
                 Location loc = PerspectiveUtils.vectorToLocation(v);
                 pb.addBlock(Block.newBuilder()
                     .setName(b.name)
-                    .setMesh(b.mesh)
-                    .setColour(b.colour)
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
                     .setLocation(loc)
-                    .setTexture(b.texture)
-                    .setMaterial(b.material)
-                    .setShader(b.shader));
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         List<Element> goals = getElements("goal");
         if (goals != null) {
             for (Element g : goals) {
+                Appearance a = g.getAppearance();
                 Vector v = scene.getVector(g.name);
                 Location loc = PerspectiveUtils.vectorToLocation(v);
                 pb.addGoal(Goal.newBuilder()
                     .setName(g.name)
-                    .setMesh(g.mesh)
-                    .setColour(g.colour)
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
                     .setLocation(loc)
-                    .setTexture(g.texture)
-                    .setMaterial(g.material)
-                    .setShader(g.shader));
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         List<Element> portals = getElements("portal");
         if (portals != null) {
             for (Element p : portals) {
+                Appearance a = p.getAppearance();
                 Vector v = scene.getVector(p.name);
                 Location loc = PerspectiveUtils.vectorToLocation(v);
                 Location link = PerspectiveUtils.vectorToLocation(linkedPortals.get(v));
                 pb.addPortal(Portal.newBuilder()
                     .setName(p.name)
-                    .setMesh(p.mesh)
-                    .setColour(p.colour)
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
                     .setLocation(loc)
                     .setLink(link)
-                    .setTexture(p.texture)
-                    .setMaterial(p.material)
-                    .setShader(p.shader));
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         List<Element> spheres = getElements("sphere");
         if (spheres != null) {
             for (Element s : spheres) {
+                Appearance a = s.getAppearance();
                 Vector v = scene.getVector(s.name);
                 Location loc = PerspectiveUtils.vectorToLocation(v);
                 pb.addSphere(Sphere.newBuilder()
                     .setName(s.name)
-                    .setMesh(s.mesh)
-                    .setColour(s.colour)
+                    .setMesh(a.mesh)
+                    .setColour(a.colour)
                     .setLocation(loc)
-                    .setTexture(s.texture)
-                    .setMaterial(s.material)
-                    .setShader(s.shader));
+                    .setTexture(a.texture)
+                    .setMaterial(a.material)
+                    .setShader(a.shader));
             }
         }
         if (dialogs != null) {
@@ -494,12 +1401,12 @@ public class Perspective {
                 Location loc = PerspectiveUtils.vectorToLocation(v);
                 pb.addScenery(Scenery.newBuilder()
                     .setName(s.name)
-                    .setMesh(s.mesh)
-                    .setColour(s.colour)
+                    .setMesh(s.getAppearance().mesh)
+                    .setColour(s.getAppearance().colour)
                     .setLocation(loc)
-                    .setTexture(s.texture)
-                    .setMaterial(s.material)
-                    .setShader(s.shader));
+                    .setTexture(s.getAppearance().texture)
+                    .setMaterial(s.getAppearance().material)
+                    .setShader(s.getAppearance().shader));
             }
         }
         Puzzle p = pb.build();
@@ -507,77 +1414,101 @@ public class Perspective {
         return p;
     }
 
+    // Writes the puzzle as PerspectiveUtils.writePuzzle(out, exportPuzzle()) would, without building it first
+    public void exportPuzzle(OutputStream out) throws IOException {
+        getPuzzleWriter().write(out);
+    }
+
+    public void exportPuzzle(ByteBuffer buffer) throws IOException {
+        getPuzzleWriter().write(buffer);
+    }
+
+    public PuzzleWriter getPuzzleWriter() {
+        if (puzzleWriter == null) {
+            puzzleWriter = new PuzzleWriter(this);
+        }
+        return puzzleWriter;
+    }
+
+    // Runs the animation alongside any others, once its dependencies have completed
+    private void schedule(Animation animation, Animation... dependencies) {
+        onAnimationStart();
+        animator.schedule(animation, dependencies);
+        if (!scene.hasAnimation()) {
+            scene.setAnimation(animator);
+        }
+    }
+
     public void drop() {
         synchronized (scene) {
-            if (!scene.hasAnimation()) {
-                System.out.println("drop");
-                if (inverseRotation.makeInverse(mainRotation)) {
-                    // TODO improve this - creating new sets and maps each time is expensive
-                    Set<Vector> blocks = new HashSet<>();
-                    List<Element> bs = getElements("block");
-                    if (bs != null) {
-                        for (Element b : bs) {
-                            blocks.add(scene.getVector(b.name));
-                        }
-                    }
-                    Set<Vector> goals = new HashSet<>();
-                    List<Element> gs = getElements("goal");
-                    if (gs != null) {
-                        for (Element g : gs) {
-                            goals.add(scene.getVector(g.name));
-                        }
-                    }
-                    Map<String, Vector> spheres = new HashMap<>();
-                    List<Element> ss = getElements("sphere");
-                    if (ss != null) {
-                        for (Element s : ss) {
-                            spheres.put(s.name, scene.getVector(s.name));
-                        }
+            System.out.println("drop");
+            if (gameOver) {
+                return;
+            }
+            if (inverseRotation.makeInverse(mainRotation)) {
+                Map<String, Vector> spheres = new HashMap<>();
+                List<Element> ss = getElements("sphere");
+                if (ss != null) {
+                    for (Element s : ss) {
+                        spheres.put(s.name, scene.getVector(s.name));
                     }
-                    scene.setAnimation(new DropAnimation(size, inverseRotation, down, blocks, goals, linkedPortals, spheres) {
-                        @Override
-                        public void onComplete() {
-                            boolean gameLost = false;
-                            boolean gameWon = true;
-                            for (Entry<String, Vector> s : spheres.entrySet()) {
-                                String k = s.getKey();
-                                Vector v = s.getValue();
-                                if (PerspectiveUtils.isOutOfBounds(v, size)) {
-                                    // if any spheres are out of bounds - game over
-                                    gameLost = true;
-                                } else if (!goals.contains(v)) {
-                                    // if all spheres are in the goals - game won
-                                    gameWon = false;
-                                }
-                                System.out.println("Move: " + k + " " + v);
-                                solution.addMove(Move.newBuilder()
-                                        .setKey(k)
-                                        .setValue(PerspectiveUtils.vectorToLocation(v))
-                                        .build());
-                            }
-                            if (gameLost) {
-                                gameOver = true;
+                }
+                Animation drop = new DropAnimation(size, inverseRotation, down, blocks, goals, linkedPortals, spheres) {
+                    @Override
+                    public void onComplete() {
+                        onAnimationEnd();
+                        reindexSpheres();
+                        boolean gameLost = false;
+                        boolean gameWon = true;
+                        for (Entry<String, Vector> s : spheres.entrySet()) {
+                            String k = s.getKey();
+                            Vector v = s.getValue();
+                            if (PerspectiveUtils.isOutOfBounds(v, size)) {
+                                // if any spheres are out of bounds - game over
+                                gameLost = true;
+                            } else if (!goals.contains(v)) {
+                                // if all spheres are in the goals - game won
                                 gameWon = false;
-                                callback.onGameLost();
-                            } else if (gameWon) {
-                                gameOver = true;
-                                gameWon = true;
-                                callback.onGameWon();
-                            } else {
-                                callback.onDropComplete();
                             }
+                            System.out.println("Move: " + k + " " + v);
+                            moves.addMove(k, v);
                         }
-                    });
-                } else {
-                    System.err.println("Matrix invert failed");
-                }
+                        if (gameLost) {
+                            gameOver = true;
+                            Perspective.this.gameWon = false;
+                        } else if (gameWon) {
+                            gameOver = true;
+                            Perspective.this.gameWon = true;
+                        }
+                        if (gameOver) {
+                            // Drops and rotations queued behind this one belong to a finished game
+                            cancelAnimations();
+                        }
+                        if (history != null) {
+                            history.record();
+                        }
+                        updateTrajectory();
+                        if (gameLost) {
+                            callback.onGameLost();
+                        } else if (gameWon) {
+                            callback.onGameWon();
+                        } else {
+                            callback.onDropComplete();
+                        }
+                    }
+                };
+                // Drops wait for any rotation to settle, and for the previous drop
+                schedule(drop, lastRotation, lastDrop);
+                lastDrop = drop;
+            } else {
+                System.err.println("Matrix invert failed");
             }
         }
     }
 
     public void rotate(float x, float y) {
         synchronized (scene) {
-            if (!scene.hasAnimation()) {
+            if (!animator.isScheduled(lastRotation)) {
                 System.out.println(String.format("rotate %f, %f", x, y));
                 if (inverseRotation.makeInverse(mainRotation)) {
                     if (y != 0) {
@@ -597,6 +1528,9 @@ public class Perspective {
                     if (!inverseRotation.makeInverse(mainRotation)) {
                         System.err.println("Matrix invert failed");
                     }
+                    matrices.invalidateRotation();
+                    updateTrajectory();
+                    invalidate();
                     callback.onRotateComplete();
                 } else {
                     System.err.println("Matrix invert failed");
@@ -607,37 +1541,53 @@ public class Perspective {
 
     public void rotateToAxis() {
         synchronized (scene) {
-            if (!scene.hasAnimation()) {
-                System.out.println("rotateToAxis");
-                if (inverseRotation.makeInverse(mainRotation)) {
-                    scene.setAnimation(new RotateToAxisAnimation(mainRotation, inverseRotation, tempRotation, cameraEye, cameraUp) {
-                        @Override
-                        public void onComplete() {
-                            solution.setScore(solution.getScore() + 1);
-                            callback.onTurnComplete();
+            System.out.println("rotateToAxis");
+            if (gameOver) {
+                return;
+            }
+            if (inverseRotation.makeInverse(mainRotation)) {
+                Animation rotation = new RotateToAxisAnimation(mainRotation, inverseRotation, tempRotation, cameraEye, cameraUp) {
+                    @Override
+                    public void onComplete() {
+                        onAnimationEnd();
+                        moves.incrementScore();
+                        if (history != null) {
+                            history.record();
                         }
-                    });
-                } else {
-                    System.err.println("Matrix invert failed");
-                }
+                        updateTrajectory();
+                        callback.onTurnComplete();
+                    }
+                };
+                schedule(rotation, lastRotation);
+                lastRotation = rotation;
+            } else {
+                System.err.println("Matrix invert failed");
             }
         }
     }
 
     public void turn(int x, int y, int z) {
         synchronized (scene) {
-            if (!scene.hasAnimation()) {
-                System.out.println(String.format("turn %d, %d, %d", x, y, z));
-                if (inverseRotation.makeInverse(mainRotation)) {
-                    scene.setAnimation(new RotationAnimation(mainRotation, inverseRotation, tempRotation, 250, (float) Math.PI / 2.0f, x, y, z) {
-                        @Override
-                        public void onComplete() {
-                            callback.onTurnComplete();
+            System.out.println(String.format("turn %d, %d, %d", x, y, z));
+            if (gameOver) {
+                return;
+            }
+            if (inverseRotation.makeInverse(mainRotation)) {
+                Animation rotation = new RotationAnimation(mainRotation, inverseRotation, tempRotation, 250, (float) Math.PI / 2.0f, x, y, z) {
+                    @Override
+                    public void onComplete() {
+                        onAnimationEnd();
+                        if (history != null) {
+                            history.record();
                         }
-                    });
-                } else {
-                    System.err.println("Matrix invert failed");
-                }
+                        updateTrajectory();
+                        callback.onTurnComplete();
+                    }
+                };
+                schedule(rotation, lastRotation);
+                lastRotation = rotation;
+            } else {
+                System.err.println("Matrix invert failed");
             }
         }
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.PerspectiveProto.Block;
+import com.aletheiaware.perspective.PerspectiveProto.Dialog;
+import com.aletheiaware.perspective.PerspectiveProto.Goal;
+import com.aletheiaware.perspective.PerspectiveProto.Outline;
+import com.aletheiaware.perspective.PerspectiveProto.Portal;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Scenery;
+import com.aletheiaware.perspective.PerspectiveProto.Sky;
+import com.aletheiaware.perspective.PerspectiveProto.Sphere;
+import com.aletheiaware.perspective.utils.OccupancyGrid;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Everything Perspective needs to import a puzzle that does not touch the scene, so it can be built off the render thread
+// Imports copy what they take, so one prepared puzzle can be imported any number of times, and by several perspectives
+public class PreparedPuzzle {
+
+    public static class Entry {
+        public String type;
+        public String name;
+        public String shader;
+        public String mesh;
+        public Vector location;// Null for outline and sky
+        public String colour;
+        public String texture;
+        public String material;
+    }
+
+    public final Puzzle puzzle;
+    public final int size;
+    // Entries in import order; outline, sky, block, goal, portal, sphere, scenery
+    public final List<Entry> entries = new ArrayList<>();
+    public final Map<Vector, Vector> linkedPortals = new HashMap<>();
+    public final OccupancyGrid blocks = new OccupancyGrid();
+    public final OccupancyGrid goals = new OccupancyGrid();
+    public final List<Dialog> dialogs = new ArrayList<>();
+    public final List<Vector> dialogLocations = new ArrayList<>();
+
+    private PreparedPuzzle(Puzzle puzzle, int size) {
+        this.puzzle = puzzle;
+        this.size = size;
+    }
+
+    public static PreparedPuzzle prepare(Puzzle puzzle, int size) {
+        PreparedPuzzle p = new PreparedPuzzle(puzzle, size);
+        int half = size / 2;
+
+        if (puzzle.hasOutline()) {
+            Outline o = puzzle.getOutline();
+            p.add("outline", o.getShader(), "o0", o.getMesh(), null, o.getColour(), o.getTexture(), o.getMaterial());
+        }
+        for (Sky s : puzzle.getSkyList()) {
+            p.add("sky", s.getShader(), s.getName(), s.getMesh(), null, s.getColour(), s.getTexture(), s.getMaterial());
+        }
+        for (Block b : puzzle.getBlockList()) {
+            Vector v = PerspectiveUtils.locationToVector(b.getLocation()).cap(-half, half);
+            p.add("block", b.getShader(), b.getName(), b.getMesh(), v, b.getColour(), b.getTexture(), b.getMaterial());
+            p.blocks.add(v);
+        }
+        for (Goal g : puzzle.getGoalList()) {
+            Vector v = PerspectiveUtils.locationToVector(g.getLocation()).cap(-half, half);
+            p.add("goal", g.getShader(), g.getName(), g.getMesh(), v, g.getColour(), g.getTexture(), g.getMaterial());
+            p.goals.add(v);
+        }
+        for (Portal o : puzzle.getPortalList()) {
+            Vector v = PerspectiveUtils.locationToVector(o.getLocation()).cap(-half, half);
+            Vector l = PerspectiveUtils.locationToVector(o.getLink()).cap(-half, half);
+            p.add("portal", o.getShader(), o.getName(), o.getMesh(), v, o.getColour(), o.getTexture(), o.getMaterial());
+            p.linkedPortals.put(v, l);
+        }
+        for (Sphere s : puzzle.getSphereList()) {
+            Vector v = PerspectiveUtils.locationToVector(s.getLocation()).cap(1 - size, size - 1);
+            p.add("sphere", s.getShader(), s.getName(), s.getMesh(), v, s.getColour(), s.getTexture(), s.getMaterial());
+        }
+        for (Dialog d : puzzle.getDialogList()) {
+            Vector v = PerspectiveUtils.locationToVector(d.getLocation()).cap(1 - size, size - 1);
+            p.dialogs.add(d);
+            p.dialogLocations.add(v);
+        }
+        for (Scenery s : puzzle.getSceneryList()) {
+            Vector v = PerspectiveUtils.locationToVector(s.getLocation());// Don't cap scenery
+            p.add("scenery", s.getShader(), s.getName(), s.getMesh(), v, s.getColour(), s.getTexture(), s.getMaterial());
+        }
+        return p;
+    }
+
+    private void add(String type, String shader, String name, String mesh, Vector location, String colour, String texture, String material) {
+        Entry e = new Entry();
+        e.type = type;
+        e.name = name;
+        e.shader = shader;
+        e.mesh = mesh;
+        e.location = location;
+        e.colour = colour;
+        e.texture = texture;
+        e.material = material;
+        entries.add(e);
+    }
+}
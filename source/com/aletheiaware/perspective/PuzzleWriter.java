@@ -0,0 +1,322 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.Perspective.Element;
+import com.aletheiaware.perspective.PerspectiveProto.Block;
+import com.aletheiaware.perspective.PerspectiveProto.Dialog;
+import com.aletheiaware.perspective.PerspectiveProto.Goal;
+import com.aletheiaware.perspective.PerspectiveProto.Location;
+import com.aletheiaware.perspective.PerspectiveProto.Outline;
+import com.aletheiaware.perspective.PerspectiveProto.Portal;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Scenery;
+import com.aletheiaware.perspective.PerspectiveProto.Sky;
+import com.aletheiaware.perspective.PerspectiveProto.Sphere;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+// Serializes the puzzle held by a Perspective directly to a stream, producing the same bytes as
+// PerspectiveUtils.writePuzzle(out, perspective.exportPuzzle()) without building the Puzzle tree
+public class PuzzleWriter {
+
+    private static final int NAME = 0;
+    private static final int MESH = 1;
+    private static final int COLOUR = 2;
+    private static final int LOCATION = 3;
+    private static final int LINK = 4;
+    private static final int TEXTURE = 5;
+    private static final int MATERIAL = 6;
+    private static final int SHADER = 7;
+
+    private static final int MAX_CACHED_LOCATIONS = 4096;
+
+    private static final class Layout {
+        final String type;
+        final int number;
+        final int[] keys;
+        final int[] numbers;
+
+        Layout(String type, int number, int[] keys, int[] numbers) {
+            this.type = type;
+            this.number = number;
+            this.keys = keys;
+            this.numbers = numbers;
+            // Protobuf writes fields in field number order
+            for (int i = 1; i < numbers.length; i++) {
+                for (int j = i; j > 0 && numbers[j - 1] > numbers[j]; j--) {
+                    swap(this.keys, j, j - 1);
+                    swap(this.numbers, j, j - 1);
+                }
+            }
+        }
+    }
+
+    private static final String DIALOG = "dialog";
+
+    private static final Layout[] LAYOUTS = {
+        new Layout("outline", Puzzle.OUTLINE_FIELD_NUMBER,
+            new int[] {MESH, COLOUR, TEXTURE, MATERIAL, SHADER},
+            new int[] {Outline.MESH_FIELD_NUMBER, Outline.COLOUR_FIELD_NUMBER, Outline.TEXTURE_FIELD_NUMBER, Outline.MATERIAL_FIELD_NUMBER, Outline.SHADER_FIELD_NUMBER}),
+        new Layout("sky", Puzzle.SKY_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, TEXTURE, MATERIAL, SHADER},
+            new int[] {Sky.NAME_FIELD_NUMBER, Sky.MESH_FIELD_NUMBER, Sky.COLOUR_FIELD_NUMBER, Sky.TEXTURE_FIELD_NUMBER, Sky.MATERIAL_FIELD_NUMBER, Sky.SHADER_FIELD_NUMBER}),
+        new Layout("block", Puzzle.BLOCK_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, LOCATION, TEXTURE, MATERIAL, SHADER},
+            new int[] {Block.NAME_FIELD_NUMBER, Block.MESH_FIELD_NUMBER, Block.COLOUR_FIELD_NUMBER, Block.LOCATION_FIELD_NUMBER, Block.TEXTURE_FIELD_NUMBER, Block.MATERIAL_FIELD_NUMBER, Block.SHADER_FIELD_NUMBER}),
+        new Layout("goal", Puzzle.GOAL_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, LOCATION, TEXTURE, MATERIAL, SHADER},
+            new int[] {Goal.NAME_FIELD_NUMBER, Goal.MESH_FIELD_NUMBER, Goal.COLOUR_FIELD_NUMBER, Goal.LOCATION_FIELD_NUMBER, Goal.TEXTURE_FIELD_NUMBER, Goal.MATERIAL_FIELD_NUMBER, Goal.SHADER_FIELD_NUMBER}),
+        new Layout("portal", Puzzle.PORTAL_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, LOCATION, LINK, TEXTURE, MATERIAL, SHADER},
+            new int[] {Portal.NAME_FIELD_NUMBER, Portal.MESH_FIELD_NUMBER, Portal.COLOUR_FIELD_NUMBER, Portal.LOCATION_FIELD_NUMBER, Portal.LINK_FIELD_NUMBER, Portal.TEXTURE_FIELD_NUMBER, Portal.MATERIAL_FIELD_NUMBER, Portal.SHADER_FIELD_NUMBER}),
+        new Layout("sphere", Puzzle.SPHERE_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, LOCATION, TEXTURE, MATERIAL, SHADER},
+            new int[] {Sphere.NAME_FIELD_NUMBER, Sphere.MESH_FIELD_NUMBER, Sphere.COLOUR_FIELD_NUMBER, Sphere.LOCATION_FIELD_NUMBER, Sphere.TEXTURE_FIELD_NUMBER, Sphere.MATERIAL_FIELD_NUMBER, Sphere.SHADER_FIELD_NUMBER}),
+        new Layout(DIALOG, Puzzle.DIALOG_FIELD_NUMBER, new int[0], new int[0]),
+        new Layout("scenery", Puzzle.SCENERY_FIELD_NUMBER,
+            new int[] {NAME, MESH, COLOUR, LOCATION, TEXTURE, MATERIAL, SHADER},
+            new int[] {Scenery.NAME_FIELD_NUMBER, Scenery.MESH_FIELD_NUMBER, Scenery.COLOUR_FIELD_NUMBER, Scenery.LOCATION_FIELD_NUMBER, Scenery.TEXTURE_FIELD_NUMBER, Scenery.MATERIAL_FIELD_NUMBER, Scenery.SHADER_FIELD_NUMBER}),
+    };
+
+    static {
+        // Puzzle fields are also written in field number order
+        for (int i = 1; i < LAYOUTS.length; i++) {
+            for (int j = i; j > 0 && LAYOUTS[j - 1].number > LAYOUTS[j].number; j--) {
+                Layout t = LAYOUTS[j];
+                LAYOUTS[j] = LAYOUTS[j - 1];
+                LAYOUTS[j - 1] = t;
+            }
+        }
+    }
+
+    private final Perspective perspective;
+    // Locations are immutable so one instance per cell can be shared between exports
+    private final Map<Vector, Location> locations = new HashMap<>();
+    private Dialog[] dialogs = new Dialog[0];
+    private int[] sizes = new int[64];
+    private int count;
+
+    public PuzzleWriter(Perspective perspective) {
+        this.perspective = perspective;
+    }
+
+    public int computeSize() {
+        count = 0;
+        int size = 0;
+        for (Layout layout : LAYOUTS) {
+            if (layout.type.equals(DIALOG)) {
+                prepareDialogs();
+                for (Dialog d : dialogs) {
+                    if (d == null) {
+                        break;
+                    }
+                    size += CodedOutputStream.computeMessageSize(layout.number, d);
+                }
+                continue;
+            }
+            List<Element> es = perspective.getElements(layout.type);
+            int start = 0;
+            if (layout.number == Puzzle.OUTLINE_FIELD_NUMBER && es.size() > 1) {
+                // Only the last outline survives in the exported puzzle
+                start = es.size() - 1;
+            }
+            for (int i = start; i < es.size(); i++) {
+                int s = computeElementSize(layout, es.get(i));
+                record(s);
+                size += CodedOutputStream.computeTagSize(layout.number) + CodedOutputStream.computeUInt32SizeNoTag(s) + s;
+            }
+        }
+        return size;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        CodedOutputStream cos = CodedOutputStream.newInstance(out);
+        write(cos);
+        cos.flush();
+    }
+
+    public void write(ByteBuffer buffer) throws IOException {
+        CodedOutputStream cos = CodedOutputStream.newInstance(buffer);
+        write(cos);
+        cos.flush();
+    }
+
+    // Writes the length delimited puzzle, as Puzzle.writeDelimitedTo would
+    public void write(CodedOutputStream out) throws IOException {
+        int size = computeSize();
+        out.writeUInt32NoTag(size);
+        int index = 0;
+        for (Layout layout : LAYOUTS) {
+            if (layout.type.equals(DIALOG)) {
+                for (Dialog d : dialogs) {
+                    if (d == null) {
+                        break;
+                    }
+                    out.writeMessage(layout.number, d);
+                }
+                continue;
+            }
+            List<Element> es = perspective.getElements(layout.type);
+            int start = 0;
+            if (layout.number == Puzzle.OUTLINE_FIELD_NUMBER && es.size() > 1) {
+                start = es.size() - 1;
+            }
+            for (int i = start; i < es.size(); i++) {
+                out.writeTag(layout.number, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(sizes[index++]);
+                writeElement(out, layout, es.get(i));
+            }
+        }
+    }
+
+    private void record(int size) {
+        if (count == sizes.length) {
+            sizes = Arrays.copyOf(sizes, count * 2);
+        }
+        sizes[count++] = size;
+    }
+
+    private void prepareDialogs() {
+        Map<String, Dialog> ds = perspective.dialogs;
+        if (dialogs.length < ds.size() + 1) {
+            dialogs = new Dialog[ds.size() + 1];
+        }
+        int i = 0;
+        for (Entry<String, Dialog> e : ds.entrySet()) {
+            String name = e.getKey();
+            Dialog d = e.getValue();
+            // Dialogs are rare, build them the same way exportPuzzle does
+            dialogs[i++] = Dialog.newBuilder()
+                .setName(name)
+                .setBackgroundColour(d.getBackgroundColour())
+                .setForegroundColour(d.getForegroundColour())
+                .setAuthor(d.getAuthor())
+                .setContent(d.getContent())
+                .setLocation(getLocation(perspective.scene.getVector(name)))
+                .addAllElement(d.getElementList())
+                .build();
+        }
+        dialogs[i] = null;
+    }
+
+    private int computeElementSize(Layout layout, Element e) {
+        int size = 0;
+        Appearance a = e.getAppearance();
+        for (int i = 0; i < layout.keys.length; i++) {
+            int key = layout.keys[i];
+            int number = layout.numbers[i];
+            switch (key) {
+                case LOCATION:
+                case LINK:
+                    Location l = getLocation(e, key);
+                    if (l != null) {
+                        size += CodedOutputStream.computeMessageSize(number, l);
+                    }
+                    break;
+                default:
+                    String s = getString(e, a, key);
+                    if (s != null && !s.isEmpty()) {
+                        size += CodedOutputStream.computeStringSize(number, s);
+                    }
+            }
+        }
+        return size;
+    }
+
+    private void writeElement(CodedOutputStream out, Layout layout, Element e) throws IOException {
+        Appearance a = e.getAppearance();
+        for (int i = 0; i < layout.keys.length; i++) {
+            int key = layout.keys[i];
+            int number = layout.numbers[i];
+            switch (key) {
+                case LOCATION:
+                case LINK:
+                    Location l = getLocation(e, key);
+                    if (l != null) {
+                        out.writeMessage(number, l);
+                    }
+                    break;
+                default:
+                    String s = getString(e, a, key);
+                    if (s != null && !s.isEmpty()) {
+                        out.writeString(number, s);
+                    }
+            }
+        }
+    }
+
+    private Location getLocation(Element e, int key) {
+        Vector v = perspective.scene.getVector(e.name);
+        if (key == LINK) {
+            v = perspective.linkedPortals.get(v);
+        }
+        return getLocation(v);
+    }
+
+    private Location getLocation(Vector v) {
+        if (v == null) {
+            return null;
+        }
+        Location l = locations.get(v);
+        if (l == null) {
+            if (locations.size() >= MAX_CACHED_LOCATIONS) {
+                locations.clear();
+            }
+            l = PerspectiveUtils.vectorToLocation(v);
+            // Scene vectors are mutable so key by a copy
+            locations.put(v.clone(), l);
+        }
+        return l;
+    }
+
+    private static String getString(Element e, Appearance a, int key) {
+        switch (key) {
+            case NAME:
+                return e.name;
+            case MESH:
+                return a.mesh;
+            case COLOUR:
+                return a.colour;
+            case TEXTURE:
+                return a.texture;
+            case MATERIAL:
+                return a.material;
+            case SHADER:
+                return a.shader;
+        }
+        return null;
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
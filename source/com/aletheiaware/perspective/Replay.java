@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective;
+
+import com.aletheiaware.perspective.Perspective.Element;
+import com.aletheiaware.perspective.PerspectiveProto.Location;
+import com.aletheiaware.perspective.PerspectiveProto.Move;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Solution;
+import com.aletheiaware.perspective.PerspectiveProto.Sphere;
+import com.aletheiaware.perspective.solver.Board;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Plays back a solution at any speed, forwards or backwards, without animating each drop. Every move in a solution
+// holds the absolute cell of a sphere, so each step is its own keyframe and seeking anywhere costs one copy.
+// Runs headless, or drives the spheres of a Perspective which has imported the same puzzle.
+public class Replay {
+
+    public static final int UNKNOWN = -1;
+
+    private final Puzzle puzzle;
+    private final int size;
+    private final String[] keys;// Sphere names
+    private final Map<String, Integer> keyIndices = new HashMap<>();
+    private final int stepCount;
+    private final int[] cells;// Step by sphere by axis
+    private final int[] directions;// Drop direction which leads to each step, UNKNOWN if no direction does
+    private final int score;
+    private int step;
+    private float speed = 1;// Steps per second, negative plays backwards
+    private float elapsed;// Fraction of a step played
+
+    public Replay(Puzzle puzzle, Solution solution, int size) {
+        this.puzzle = puzzle;
+        this.size = size;
+        this.score = solution.getScore();
+        List<Sphere> spheres = puzzle.getSphereList();
+        keys = new String[spheres.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = spheres.get(i).getName();
+            keyIndices.put(keys[i], i);
+        }
+        // Group the moves into steps, a step ends when a sphere moves a second time
+        int[] grid = new int[(solution.getMoveCount() + 1) * keys.length * 3];
+        for (int i = 0; i < keys.length; i++) {
+            Location l = spheres.get(i).getLocation();
+            grid[i * 3] = l.getX();
+            grid[i * 3 + 1] = l.getY();
+            grid[i * 3 + 2] = l.getZ();
+        }
+        int steps = 0;
+        boolean[] moved = new boolean[keys.length];
+        for (Move m : solution.getMoveList()) {
+            Integer k = keyIndices.get(m.getKey());
+            if (k == null) {
+                System.err.println("Unknown sphere: " + m.getKey());
+                continue;
+            }
+            if (steps == 0 || moved[k]) {
+                // Start the next step from where the last one left every sphere
+                steps++;
+                System.arraycopy(grid, (steps - 1) * keys.length * 3, grid, steps * keys.length * 3, keys.length * 3);
+                Arrays.fill(moved, false);
+            }
+            moved[k] = true;
+            Location l = m.getValue();
+            int o = (steps * keys.length + k) * 3;
+            grid[o] = l.getX();
+            grid[o + 1] = l.getY();
+            grid[o + 2] = l.getZ();
+        }
+        stepCount = steps;
+        cells = Arrays.copyOf(grid, (steps + 1) * keys.length * 3);
+        directions = new int[steps + 1];
+        validate();
+    }
+
+    // Works out which way each step was dropped, by dropping every sphere of the previous step in each direction
+    private void validate() {
+        directions[0] = UNKNOWN;
+        Board board = Board.of(puzzle, size);
+        for (int s = 1; s <= stepCount; s++) {
+            directions[s] = UNKNOWN;
+            for (int d = 0; d < Board.DIRECTION_COUNT && directions[s] == UNKNOWN; d++) {
+                boolean match = true;
+                for (int k = 0; k < keys.length && match; k++) {
+                    int o = ((s - 1) * keys.length + k) * 3;
+                    long from = PerspectiveUtils.packCell(cells[o], cells[o + 1], cells[o + 2]);
+                    long to = board.drop(from, d, null);
+                    int p = (s * keys.length + k) * 3;
+                    if (to == Board.OUT) {
+                        match = Math.abs(cells[p]) > size || Math.abs(cells[p + 1]) > size || Math.abs(cells[p + 2]) > size;
+                    } else {
+                        match = to == PerspectiveUtils.packCell(cells[p], cells[p + 1], cells[p + 2]);
+                    }
+                }
+                if (match) {
+                    directions[s] = d;
+                }
+            }
+        }
+    }
+
+    public Puzzle getPuzzle() {
+        return puzzle;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public int getSphereCount() {
+        return keys.length;
+    }
+
+    public String getKey(int sphere) {
+        return keys[sphere];
+    }
+
+    // Index into Board.DIRECTIONS of the drop which led to the step, or UNKNOWN
+    public int getDirection(int step) {
+        return directions[step];
+    }
+
+    // First step no drop could have led to, or -1 if the whole solution follows the rules
+    public int getFirstInvalidStep() {
+        for (int s = 1; s <= stepCount; s++) {
+            if (directions[s] == UNKNOWN) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    public int getX(int sphere) {
+        return cells[(step * keys.length + sphere) * 3];
+    }
+
+    public int getY(int sphere) {
+        return cells[(step * keys.length + sphere) * 3 + 1];
+    }
+
+    public int getZ(int sphere) {
+        return cells[(step * keys.length + sphere) * 3 + 2];
+    }
+
+    public boolean isFinished() {
+        return speed >= 0 ? step == stepCount : step == 0;
+    }
+
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public void seek(int step) {
+        this.step = Math.max(0, Math.min(stepCount, step));
+        elapsed = 0;
+    }
+
+    public boolean stepForward() {
+        if (step < stepCount) {
+            step++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean stepBackward() {
+        if (step > 0) {
+            step--;
+            return true;
+        }
+        return false;
+    }
+
+    // Moves on by however many steps the time covers at the current speed, returns true if the step changed
+    public boolean advance(long millis) {
+        elapsed += speed * millis / 1000f;
+        int whole = (int) elapsed;
+        if (whole == 0) {
+            return false;
+        }
+        elapsed -= whole;
+        int previous = step;
+        step = Math.max(0, Math.min(stepCount, step + whole));
+        if (step == 0 || step == stepCount) {
+            elapsed = 0;
+        }
+        return step != previous;
+    }
+
+    // Moves the spheres of the perspective to where they are at the current step
+    public void apply(Perspective perspective) {
+        synchronized (perspective.scene) {
+            List<Element> spheres = perspective.getElements("sphere");
+            if (spheres != null) {
+                for (Element e : spheres) {
+                    Integer k = keyIndices.get(e.name);
+                    if (k != null && e.location != null) {
+                        e.location.set(getX(k), getY(k), getZ(k));
+                    }
+                }
+            }
+            perspective.onSpheresMoved();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.scene;
+
+import com.aletheiaware.joy.scene.Animation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs several animations at once as the scene's single animation. An animation starts ticking once all the
+// animations it depends on have completed, and ticking stops for the frame once the time budget is spent
+public class AnimationScheduler extends Animation {
+
+    // Roughly half a 60Hz frame
+    public static final long DEFAULT_BUDGET_NANOS = 8_000_000L;
+
+    private static final class Task {
+        final Animation animation;
+        final Animation[] dependencies;
+
+        Task(Animation animation, Animation[] dependencies) {
+            this.animation = animation;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private final List<Task> completed = new ArrayList<>();
+    private long budget;
+    private int next;// Where the next frame starts ticking, so no animation starves when the budget runs out
+
+    public AnimationScheduler() {
+        this(DEFAULT_BUDGET_NANOS);
+    }
+
+    public AnimationScheduler(long budget) {
+        super();
+        this.budget = budget;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    // Adds an animation which will start once all the given animations (which may be null) have completed
+    public synchronized void schedule(Animation animation, Animation... dependencies) {
+        List<Animation> ds = new ArrayList<>();
+        for (Animation d : dependencies) {
+            if (d != null && isScheduled(d)) {
+                ds.add(d);
+            }
+        }
+        tasks.add(new Task(animation, ds.toArray(new Animation[0])));
+    }
+
+    public synchronized boolean isScheduled(Animation animation) {
+        if (animation == null) {
+            return false;
+        }
+        for (Task t : tasks) {
+            if (t.animation == animation) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    public synchronized void cancelAll() {
+        tasks.clear();
+        next = 0;
+    }
+
+    @Override
+    public boolean tick() {
+        synchronized (this) {
+            long start = System.nanoTime();
+            int count = tasks.size();
+            Task resume = count == 0 ? null : tasks.get(next % count);
+            for (int i = 0; i < count; i++) {
+                int index = (next + i) % count;
+                Task t = tasks.get(index);
+                if (!isReady(t)) {
+                    continue;
+                }
+                if (t.animation.tick()) {
+                    completed.add(t);
+                }
+                if (System.nanoTime() - start > budget && i + 1 < count) {
+                    resume = tasks.get((index + 1) % count);
+                    break;
+                }
+            }
+            tasks.removeAll(completed);
+            // Found again after removing the completed tasks, whose removal moves those after them
+            next = Math.max(0, tasks.indexOf(resume));
+        }
+        // Completion callbacks run outside the lock as they may schedule more animations
+        for (Task t : completed) {
+            t.animation.onComplete();
+        }
+        completed.clear();
+        synchronized (this) {
+            return tasks.isEmpty();
+        }
+    }
+
+    private boolean isReady(Task t) {
+        for (Animation d : t.dependencies) {
+            for (Task o : tasks) {
+                if (o.animation == d) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            Object[] as = new Object[tasks.size()];
+            for (int i = 0; i < as.length; i++) {
+                as[i] = tasks.get(i).animation;
+            }
+            return "AnimationScheduler" + Arrays.toString(as);
+        }
+    }
+}
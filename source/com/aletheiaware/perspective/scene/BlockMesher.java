@@ -0,0 +1,390 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Builds merged block geometry per chunk and material group, dropping faces hidden between adjacent blocks and
+// greedily merging coplanar faces into larger quads
+public class BlockMesher {
+
+    public static final int CHUNK = 16;
+    private static final int SHIFT = 4;
+    private static final int MASK = CHUNK - 1;
+    // Position (x, y, z), normal (x, y, z), then texture coordinates (u, v) in blocks, so a merged quad repeats the
+    // texture once per block face when sampled with GL_REPEAT
+    public static final int VERTEX_SIZE = 8;
+
+    public interface Listener {
+        void onMeshUpdated(Mesh mesh);
+        void onMeshRemoved(Mesh mesh);
+    }
+
+    public static class Mesh {
+        public final int group;
+        public final long chunk;
+        public FloatBuffer vertices;
+        public ShortBuffer indices;
+        public int vertexCount;
+        public int indexCount;
+
+        Mesh(int group, long chunk) {
+            this.group = group;
+            this.chunk = chunk;
+        }
+    }
+
+    private final Listener listener;
+    // Material group key -> id, ids start at 1 so 0 marks an empty cell
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final List<String> groupKeys = new ArrayList<>();
+    private final Map<Long, short[]> chunks = new HashMap<>();
+    private final Map<Long, Map<Integer, Mesh>> meshes = new HashMap<>();
+    private final Set<Long> dirty = new HashSet<>();
+    private Map<Long, short[]> previous;
+    private final boolean[] mask = new boolean[CHUNK * CHUNK];
+    private final float[] corner = new float[3];
+    private float[] vertices = new float[1024];
+    private short[] indices = new short[1024];
+    private int vertexCount;
+    private int indexCount;
+
+    public BlockMesher(Listener listener) {
+        this.listener = listener;
+        groupKeys.add(null);
+    }
+
+    public static String getGroupKey(String shader, String colour, String texture, String material) {
+        return shader + "/" + colour + "/" + texture + "/" + material;
+    }
+
+    public String getGroupKey(int group) {
+        return groupKeys.get(group);
+    }
+
+    public void addBlock(int x, int y, int z, String group) {
+        Integer id = groupIds.get(group);
+        if (id == null) {
+            id = groupKeys.size();
+            if (id > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many material groups");
+            }
+            groupIds.put(group, id);
+            groupKeys.add(group);
+        }
+        set(x, y, z, id);
+    }
+
+    public void removeBlock(int x, int y, int z) {
+        set(x, y, z, 0);
+    }
+
+    public void clear() {
+        for (Long key : chunks.keySet()) {
+            dirty.add(key);
+        }
+        chunks.clear();
+    }
+
+    // Between beginUpdate and endUpdate the blocks are replaced wholesale, only chunks that end up different are rebuilt
+    public void beginUpdate() {
+        previous = new HashMap<>(chunks);
+        chunks.clear();
+    }
+
+    public void endUpdate() {
+        Set<Long> keys = new HashSet<>(previous.keySet());
+        keys.addAll(chunks.keySet());
+        for (Long key : keys) {
+            if (!Arrays.equals(previous.get(key), chunks.get(key))) {
+                markDirty(chunkX(key), chunkY(key), chunkZ(key));
+            }
+        }
+        previous = null;
+    }
+
+    private void markDirty(int x, int y, int z) {
+        dirty.add(chunkKey(x, y, z));
+        dirty.add(chunkKey(x - 1, y, z));
+        dirty.add(chunkKey(x + 1, y, z));
+        dirty.add(chunkKey(x, y - 1, z));
+        dirty.add(chunkKey(x, y + 1, z));
+        dirty.add(chunkKey(x, y, z - 1));
+        dirty.add(chunkKey(x, y, z + 1));
+    }
+
+    public boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    public List<Mesh> getMeshes() {
+        List<Mesh> ms = new ArrayList<>();
+        for (Map<Integer, Mesh> m : meshes.values()) {
+            ms.addAll(m.values());
+        }
+        return ms;
+    }
+
+    private void set(int x, int y, int z, int id) {
+        long key = chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT);
+        short[] cells = chunks.get(key);
+        if (cells == null) {
+            if (id == 0) {
+                return;
+            }
+            cells = new short[CHUNK * CHUNK * CHUNK];
+            chunks.put(key, cells);
+        }
+        int index = cellIndex(x & MASK, y & MASK, z & MASK);
+        if (cells[index] == id) {
+            return;
+        }
+        cells[index] = (short) id;
+        if (previous != null) {
+            return;
+        }
+        dirty.add(key);
+        // Faces on the chunk boundary depend on the neighbouring chunk
+        int lx = x & MASK, ly = y & MASK, lz = z & MASK;
+        if (lx == 0) dirty.add(chunkKey((x >> SHIFT) - 1, y >> SHIFT, z >> SHIFT));
+        if (lx == MASK) dirty.add(chunkKey((x >> SHIFT) + 1, y >> SHIFT, z >> SHIFT));
+        if (ly == 0) dirty.add(chunkKey(x >> SHIFT, (y >> SHIFT) - 1, z >> SHIFT));
+        if (ly == MASK) dirty.add(chunkKey(x >> SHIFT, (y >> SHIFT) + 1, z >> SHIFT));
+        if (lz == 0) dirty.add(chunkKey(x >> SHIFT, y >> SHIFT, (z >> SHIFT) - 1));
+        if (lz == MASK) dirty.add(chunkKey(x >> SHIFT, y >> SHIFT, (z >> SHIFT) + 1));
+    }
+
+    private int get(int x, int y, int z) {
+        short[] cells = chunks.get(chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT));
+        if (cells == null) {
+            return 0;
+        }
+        return cells[cellIndex(x & MASK, y & MASK, z & MASK)];
+    }
+
+    // Rebuilds the meshes of every chunk touched since the last rebuild
+    public void rebuild() {
+        for (Long key : dirty) {
+            rebuild(key);
+        }
+        dirty.clear();
+    }
+
+    private void rebuild(long key) {
+        Map<Integer, Mesh> existing = meshes.remove(key);
+        Map<Integer, Mesh> updated = new HashMap<>();
+        short[] cells = chunks.get(key);
+        if (cells != null) {
+            Set<Integer> groups = new HashSet<>();
+            boolean empty = true;
+            for (short c : cells) {
+                if (c != 0) {
+                    groups.add((int) c);
+                    empty = false;
+                }
+            }
+            if (empty) {
+                chunks.remove(key);
+            }
+            int[] base = {
+                chunkX(key) << SHIFT,
+                chunkY(key) << SHIFT,
+                chunkZ(key) << SHIFT,
+            };
+            for (Integer group : groups) {
+                vertexCount = 0;
+                indexCount = 0;
+                mesh(base, group);
+                if (indexCount == 0) {
+                    continue;
+                }
+                Mesh mesh = existing == null ? null : existing.remove(group);
+                if (mesh == null) {
+                    mesh = new Mesh(group, key);
+                }
+                upload(mesh);
+                updated.put(group, mesh);
+                if (listener != null) {
+                    listener.onMeshUpdated(mesh);
+                }
+            }
+        }
+        if (!updated.isEmpty()) {
+            meshes.put(key, updated);
+        }
+        if (existing != null && listener != null) {
+            for (Mesh m : existing.values()) {
+                listener.onMeshRemoved(m);
+            }
+        }
+    }
+
+    private void mesh(int[] base, int group) {
+        int[] x = new int[3];
+        for (int d = 0; d < 3; d++) {
+            int u = (d + 1) % 3;
+            int v = (d + 2) % 3;
+            // Each slice lies between cell x[d] - 1 and cell x[d]
+            for (x[d] = 0; x[d] <= CHUNK; x[d]++) {
+                for (int side = 0; side < 2; side++) {
+                    // Side 0 faces +d and belongs to the cell behind the slice, side 1 faces -d and belongs to the cell in front
+                    if ((side == 0 && x[d] == 0) || (side == 1 && x[d] == CHUNK)) {
+                        continue;
+                    }
+                    boolean any = false;
+                    int n = 0;
+                    for (x[v] = 0; x[v] < CHUNK; x[v]++) {
+                        for (x[u] = 0; x[u] < CHUNK; x[u]++) {
+                            int bx = base[0] + x[0], by = base[1] + x[1], bz = base[2] + x[2];
+                            int behind = get(bx - (d == 0 ? 1 : 0), by - (d == 1 ? 1 : 0), bz - (d == 2 ? 1 : 0));
+                            int front = get(bx, by, bz);
+                            boolean face = side == 0 ? behind == group && front == 0 : front == group && behind == 0;
+                            mask[n++] = face;
+                            any |= face;
+                        }
+                    }
+                    if (any) {
+                        merge(base, x[d], d, u, v, side == 0);
+                    }
+                }
+            }
+            x[d] = 0;
+        }
+    }
+
+    private void merge(int[] base, int slice, int d, int u, int v, boolean positive) {
+        for (int j = 0; j < CHUNK; j++) {
+            for (int i = 0; i < CHUNK; ) {
+                if (!mask[j * CHUNK + i]) {
+                    i++;
+                    continue;
+                }
+                int w = 1;
+                while (i + w < CHUNK && mask[j * CHUNK + i + w]) {
+                    w++;
+                }
+                int h = 1;
+                grow:
+                while (j + h < CHUNK) {
+                    for (int k = 0; k < w; k++) {
+                        if (!mask[(j + h) * CHUNK + i + k]) {
+                            break grow;
+                        }
+                    }
+                    h++;
+                }
+                for (int l = 0; l < h; l++) {
+                    for (int k = 0; k < w; k++) {
+                        mask[(j + l) * CHUNK + i + k] = false;
+                    }
+                }
+                quad(base, slice, i, j, w, h, d, u, v, positive);
+                i += w;
+            }
+        }
+    }
+
+    private void quad(int[] base, int slice, int i, int j, int w, int h, int d, int u, int v, boolean positive) {
+        float[] p = corner;
+        p[d] = base[d] + slice - 0.5f;
+        p[u] = base[u] + i - 0.5f;
+        p[v] = base[v] + j - 0.5f;
+        float normal = positive ? 1 : -1;
+        int first = vertexCount;
+        for (int c = 0; c < 4; c++) {
+            // Counter-clockwise when viewed from the normal side
+            int k = positive ? c : (4 - c) % 4;
+            float du = (k == 1 || k == 2) ? w : 0;
+            float dv = (k == 2 || k == 3) ? h : 0;
+            ensureVertices();
+            int o = vertexCount * VERTEX_SIZE;
+            vertices[o] = p[0] + (u == 0 ? du : 0) + (v == 0 ? dv : 0);
+            vertices[o + 1] = p[1] + (u == 1 ? du : 0) + (v == 1 ? dv : 0);
+            vertices[o + 2] = p[2] + (u == 2 ? du : 0) + (v == 2 ? dv : 0);
+            vertices[o + 3] = d == 0 ? normal : 0;
+            vertices[o + 4] = d == 1 ? normal : 0;
+            vertices[o + 5] = d == 2 ? normal : 0;
+            vertices[o + 6] = du;
+            vertices[o + 7] = dv;
+            vertexCount++;
+        }
+        if (indexCount + 6 > indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+        }
+        // Indices are unsigned shorts, a full chunk in a checkerboard pattern stays below 65536 vertices
+        indices[indexCount++] = (short) first;
+        indices[indexCount++] = (short) (first + 1);
+        indices[indexCount++] = (short) (first + 2);
+        indices[indexCount++] = (short) first;
+        indices[indexCount++] = (short) (first + 2);
+        indices[indexCount++] = (short) (first + 3);
+    }
+
+    private void ensureVertices() {
+        if ((vertexCount + 1) * VERTEX_SIZE > vertices.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+        }
+    }
+
+    private void upload(Mesh mesh) {
+        int floats = vertexCount * VERTEX_SIZE;
+        if (mesh.vertices == null || mesh.vertices.capacity() < floats) {
+            mesh.vertices = ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        mesh.vertices.clear();
+        mesh.vertices.put(vertices, 0, floats);
+        mesh.vertices.flip();
+        if (mesh.indices == null || mesh.indices.capacity() < indexCount) {
+            mesh.indices = ByteBuffer.allocateDirect(indexCount * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+        mesh.indices.clear();
+        mesh.indices.put(indices, 0, indexCount);
+        mesh.indices.flip();
+        mesh.vertexCount = vertexCount;
+        mesh.indexCount = indexCount;
+    }
+
+    private static int cellIndex(int x, int y, int z) {
+        return (z * CHUNK + y) * CHUNK + x;
+    }
+
+    private static long chunkKey(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    private static int chunkX(long key) {
+        return (int) (key << 1 >> 43);
+    }
+
+    private static int chunkY(long key) {
+        return (int) (key << 22 >> 43);
+    }
+
+    private static int chunkZ(long key) {
+        return (int) (key << 43 >> 43);
+    }
+}
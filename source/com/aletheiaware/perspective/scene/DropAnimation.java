@@ -16,112 +16,207 @@
 
 package com.aletheiaware.perspective.scene;
 
-import com.aletheiaware.joy.scene.Animation;
 import com.aletheiaware.joy.scene.Matrix;
 import com.aletheiaware.joy.scene.Vector;
 import com.aletheiaware.joy.utils.JoyUtils;
-import com.aletheiaware.perspective.utils.PerspectiveUtils;
+import com.aletheiaware.perspective.utils.OccupancyGrid;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-public class DropAnimation extends Animation {
+// Drops every sphere along the axis. Where each sphere goes is worked out when the drop starts by marching the grids,
+// as straight runs of cells ending where it stops, leaves the board, or enters a portal to continue from the linked
+// portal. The spheres then fall along their runs under gravity, stepped in fixed slices with the rendered positions
+// interpolated.
+public class DropAnimation extends FixedStepAnimation {
 
     private static final float ACCELERATION = 9.81f;
-    private static final float INCREMENT = 0.1f;
 
-    private final Vector dest = new Vector();
-    private final Vector temp = new Vector();
     private final float[] dropAxis = new float[4];
+    private final Matrix inverseRotation;
+    private final float[] axis;
     private final float size;
-    private final Set<Vector> blocks;
-    private final Set<Vector> goals;
+    private final OccupancyGrid blocks;
+    private final OccupancyGrid goals;
     private final Map<Vector, Vector> portals;
     private final Map<String, Vector> spheres;
-    private long start = -1;
+    private Vector[] positions;
+    private int[][] runs;// Of each sphere, the start x, y, z and length of each run
+    private int[] runCounts;
+    private int[] lengths;// Of each sphere's whole path
+    private int longest;
+    private float time;
+    private float distance;
+    private float previous;
 
     public DropAnimation(float size, Matrix inverseRotation, float[] axis, Set<Vector> blocks, Set<Vector> goals, Map<Vector, Vector> portals, Map<String, Vector> spheres) {
+        this(size, inverseRotation, axis, toGrid(blocks), toGrid(goals), portals, spheres);
+    }
+
+    public DropAnimation(float size, Matrix inverseRotation, float[] axis, OccupancyGrid blocks, OccupancyGrid goals, Map<Vector, Vector> portals, Map<String, Vector> spheres) {
         super();
         this.size = size;
         this.blocks = blocks;
         this.goals = goals;
         this.portals = portals;
         this.spheres = spheres;
+        this.inverseRotation = inverseRotation;
+        this.axis = axis;
+    }
 
-        inverseRotation.multiply(axis, dropAxis);
-        System.out.println("Drop Axis A: " + java.util.Arrays.toString(dropAxis));
-        JoyUtils.round(dropAxis);
-        System.out.println("Drop Axis B: " + java.util.Arrays.toString(dropAxis));
+    private static OccupancyGrid toGrid(Set<Vector> vectors) {
+        if (vectors == null) {
+            return null;
+        }
+        OccupancyGrid grid = new OccupancyGrid(vectors.size());
+        for (Vector v : vectors) {
+            grid.add(v);
+        }
+        return grid;
     }
 
+    // Start time in milliseconds, as given by System.currentTimeMillis
     public void setStart(long start) {
-        this.start = start;
+        setStartNanos(now() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - start));
     }
 
+    // The axis is taken when the drop starts, as a scheduled drop may wait for a rotation to finish first
     @Override
-    public boolean tick() {
-        if (start < 0) {
-            start = System.currentTimeMillis();
-        }
-        if (spheres.isEmpty()) {
-            return true;
-        }
-        // TODO this works for one position, now need to refactor for multiple
-        Vector position = null;
-        for (Vector v : spheres.values()) {
-            position = v;// Hack - gets the last in the set
+    protected void begin() {
+        inverseRotation.multiply(axis, dropAxis);
+        JoyUtils.round(dropAxis);
+        System.out.println("Drop Axis: " + Arrays.toString(dropAxis));
+        int dx = Math.round(dropAxis[0]);
+        int dy = Math.round(dropAxis[1]);
+        int dz = Math.round(dropAxis[2]);
+        int count = spheres.size();
+        positions = spheres.values().toArray(new Vector[count]);
+        runs = new int[count][];
+        runCounts = new int[count];
+        lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            runs[i] = new int[8];
+            addPath(i, Math.round(positions[i].getX()), Math.round(positions[i].getY()), Math.round(positions[i].getZ()), dx, dy, dz);
+            longest = Math.max(longest, lengths[i]);
         }
+    }
 
-        System.out.println("Drop axis: " + java.util.Arrays.toString(dropAxis));
-        float progress = (System.currentTimeMillis() - start) / 1000.0f;// Time to seconds
-        System.out.println("Time: " + progress);
-        // TODO SUVAT
-        // S = ?
-        // U = 0
-        // V = ?
-        // A = gravity
-        // T = progress
-        // Solve for S (distance)
-        // S = (U * T) + (0.5 * A * T * T)
-        float distance = (0 * progress) + (0.5f * ACCELERATION * progress * progress);
-        System.out.println("Distance: " + distance);
-        for (float i = 0; i < distance; i += INCREMENT) {
-            dest.setX(position.getX() + (INCREMENT * dropAxis[0]));
-            dest.setY(position.getY() + (INCREMENT * dropAxis[1]));
-            dest.setZ(position.getZ() + (INCREMENT * dropAxis[2]));
-            dest.round(1);// Round to 1 decimal place
-            if (PerspectiveUtils.isCellCenter(dest)) {
-                // Double size so ball is offscreen, well out of bounds
-                if (PerspectiveUtils.isOutOfBounds(dest, size * 2)) {
-                    System.out.println("Ball out of bounds");
-                    position.set(dest);
-                    return true;
+    // Leaps straight to the next block, goal or portal, crossing empty chunks of the grids in a single step
+    private void addPath(int index, int x, int y, int z, int dx, int dy, int dz) {
+        if (dx == 0 && dy == 0 && dz == 0) {
+            addRun(index, x, y, z, 0);
+            return;
+        }
+        // Double size so ball is offscreen, well out of bounds
+        int bound = (int) Math.floor(size * 2);
+        // Portals can only be passed through so many times before the sphere must be going round in circles
+        int hops = portals == null ? 0 : portals.size();
+        for (int hop = 0; hop <= hops; hop++) {
+            int k = distanceOut(x, dx, bound) + distanceOut(y, dy, bound) + distanceOut(z, dz, bound);
+            Vector portal = null;
+            if (goals != null) {
+                int kg = goals.march(x, y, z, dx, dy, dz, k);
+                if (kg > 0 && kg < k) {
+                    k = kg;
                 }
-
-                if (goals != null && goals.contains(dest)) {
-                    System.out.println("Ball in Goal");
-                    position.set(dest);
-                    return true;
+            }
+            if (portals != null) {
+                for (Vector p : portals.keySet()) {
+                    int kp = stepsTo(x, y, z, dx, dy, dz, p);
+                    if (kp > 0 && kp < k) {
+                        k = kp;
+                        portal = p;
+                    }
                 }
-
-                if (portals != null && portals.containsKey(dest)) {
-                    Vector prev = dest.clone();
-                    dest.set(portals.get(dest));
-                    System.out.println("Ball moved through Portal at " + prev + " to " + dest);
-                    // move ball to paired portal
-                    position.set(dest);
+            }
+            if (blocks != null) {
+                int kb = blocks.march(x, y, z, dx, dy, dz, k);
+                if (kb > 0 && kb <= k) {
+                    // Stops in front of the block
+                    addRun(index, x, y, z, kb - 1);
+                    return;
                 }
             }
-
-            if (blocks != null && PerspectiveUtils.isCellCenter(position) && blocks.contains(PerspectiveUtils.getNextCell(temp, position, dropAxis[0], dropAxis[1], dropAxis[2]))) {
-                System.out.println("Ball stopped at Block");
-                // TODO handle bounce
-                return true;
+            addRun(index, x, y, z, k);
+            if (portal == null) {
+                return;
             }
+            Vector link = portals.get(portal);
+            System.out.println("Ball moved through Portal at " + portal + " to " + link);
+            x = Math.round(link.getX());
+            y = Math.round(link.getY());
+            z = Math.round(link.getZ());
+        }
+    }
+
+    // Steps along the axis until the coordinate is beyond the bound
+    private static int distanceOut(int c, int d, int bound) {
+        if (d > 0) {
+            return bound + 1 - c;
+        } else if (d < 0) {
+            return c + bound + 1;
+        }
+        return 0;
+    }
+
+    // Steps along the axis from the given cell to the target cell, or -1 if the target is not ahead
+    private static int stepsTo(int x, int y, int z, int dx, int dy, int dz, Vector target) {
+        int tx = Math.round(target.getX());
+        int ty = Math.round(target.getY());
+        int tz = Math.round(target.getZ());
+        int k = dx != 0 ? (tx - x) * dx : dy != 0 ? (ty - y) * dy : (tz - z) * dz;
+        if (k > 0 && tx == x + dx * k && ty == y + dy * k && tz == z + dz * k) {
+            return k;
+        }
+        return -1;
+    }
+
+    private void addRun(int index, int x, int y, int z, int length) {
+        int[] r = runs[index];
+        int o = runCounts[index] * 4;
+        if (o + 4 > r.length) {
+            r = Arrays.copyOf(r, r.length * 2);
+            runs[index] = r;
+        }
+        r[o] = x;
+        r[o + 1] = y;
+        r[o + 2] = z;
+        r[o + 3] = length;
+        runCounts[index]++;
+        lengths[index] += length;
+    }
 
-            System.out.println("Ball moved to " + dest);
-            position.set(dest);
+    @Override
+    protected boolean step(float seconds) {
+        time += seconds;
+        previous = distance;
+        // SUVAT, starting from rest; S = (U * T) + (0.5 * A * T * T)
+        distance = 0.5f * ACCELERATION * time * time;
+        return distance >= longest;
+    }
+
+    @Override
+    protected void render(float alpha) {
+        float s = previous + (distance - previous) * alpha;
+        for (int i = 0; i < positions.length; i++) {
+            setPosition(i, Math.min(s, lengths[i]), positions[i]);
+        }
+    }
+
+    // Position the given distance along the sphere's path, leaping from the end of a run to the start of the next
+    private void setPosition(int index, float s, Vector position) {
+        int[] r = runs[index];
+        int count = runCounts[index];
+        for (int i = 0; i < count; i++) {
+            int o = i * 4;
+            int length = r[o + 3];
+            if (s < length || i == count - 1) {
+                position.set(r[o] + dropAxis[0] * s, r[o + 1] + dropAxis[1] * s, r[o + 2] + dropAxis[2] * s);
+                return;
+            }
+            s -= length;
         }
-        return false;
     }
 }
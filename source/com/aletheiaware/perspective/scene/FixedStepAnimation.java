@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.scene;
+
+import com.aletheiaware.joy.scene.Animation;
+
+// Steps its simulation in fixed slices of time however long each frame takes, so the outcome does not depend on the
+// frame rate, and renders between the last two steps by how far the frame is into the next one
+public abstract class FixedStepAnimation extends Animation {
+
+    public static final long DEFAULT_STEP_NANOS = 1_000_000_000L / 120;
+    // Steps per frame, after a long stall the backlog is dropped rather than stalling the next frame too
+    private static final int MAX_STEPS = 8;
+
+    private final long step;
+    private long last = -1;
+    private long accumulator;
+    private boolean done;
+
+    public FixedStepAnimation() {
+        this(DEFAULT_STEP_NANOS);
+    }
+
+    public FixedStepAnimation(long step) {
+        super();
+        this.step = step;
+    }
+
+    // Called on the first tick, as a scheduled animation may wait for others to finish first
+    protected void begin() {}
+
+    // Advances the simulation by the given seconds, returns true once it has finished
+    protected abstract boolean step(float seconds);
+
+    // Updates the scene between the previous step (0) and the current one (1)
+    protected abstract void render(float alpha);
+
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    // Treats the animation as having started at the given time, in the clock of now()
+    protected void setStartNanos(long start) {
+        if (last < 0) {
+            begin();
+        }
+        last = start;
+    }
+
+    @Override
+    public boolean tick() {
+        long time = now();
+        if (last < 0) {
+            begin();
+            last = time;
+        }
+        accumulator += time - last;
+        last = time;
+        int steps = 0;
+        while (!done && accumulator >= step) {
+            done = step(step / 1e9f);
+            accumulator -= step;
+            if (++steps == MAX_STEPS) {
+                accumulator = 0;
+                break;
+            }
+        }
+        render(done ? 1 : (float) accumulator / step);
+        return done;
+    }
+}
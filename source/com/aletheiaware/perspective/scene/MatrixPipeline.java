@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.scene;
+
+import com.aletheiaware.joy.scene.Matrix;
+import com.aletheiaware.joy.scene.Vector;
+
+// Recomputes model-view and model-view-projection matrices only when their inputs change, and tracks whether anything
+// else drawn, such as the rotation or the elements, has changed since the last frame.
+// View and projection are left to the host as before, unless it opts in with setDeriveCamera. They are then derived
+// from the camera; the eye, look at and up vectors, the frustum, and the aspect ratio of the viewport. The first
+// frustum value is both the near distance and half the extent framed around the look at point, the second is the far
+// distance.
+public class MatrixPipeline {
+
+    private final Vector eye;
+    private final Vector lookAt;
+    private final Vector up;
+    private final float[] frustum;
+    private final Matrix model;
+    private final Matrix view;
+    private final Matrix projection;
+    private final Matrix mv;
+    private final Matrix mvp;
+    // Camera the view and projection were last derived from, so changes made directly to the vectors are noticed
+    private final float[] camera = new float[11];
+    private float distance;// From the eye to the look at point
+    private float aspect = 1;
+    private boolean deriveCamera;
+    private boolean cameraDirty = true;
+    private boolean modelDirty = true;
+    private boolean rotationDirty = true;
+    private boolean elementsDirty = true;
+
+    public MatrixPipeline(Vector eye, Vector lookAt, Vector up, float[] frustum, Matrix model, Matrix view, Matrix projection, Matrix mv, Matrix mvp) {
+        this.eye = eye;
+        this.lookAt = lookAt;
+        this.up = up;
+        this.frustum = frustum;
+        this.model = model;
+        this.view = view;
+        this.projection = projection;
+        this.mv = mv;
+        this.mvp = mvp;
+    }
+
+    // When true update overwrites the view and projection from the camera, rather than using what the host set
+    public void setDeriveCamera(boolean derive) {
+        deriveCamera = derive;
+        cameraDirty = true;
+    }
+
+    // Camera changed, including the view or projection set by the host. Changes to the eye, look at, up and frustum
+    // are also noticed by update
+    public void invalidateCamera() {
+        cameraDirty = true;
+    }
+
+    public void setViewport(int width, int height) {
+        if (width > 0 && height > 0) {
+            aspect = (float) width / height;
+            cameraDirty = true;
+        }
+    }
+
+    public void invalidateModel() {
+        modelDirty = true;
+    }
+
+    public void invalidateRotation() {
+        rotationDirty = true;
+    }
+
+    // Elements added, removed or moved
+    public void invalidateElements() {
+        elementsDirty = true;
+    }
+
+    // Returns true if anything changed since the last update, ie the frame needs redrawing
+    public boolean update() {
+        if (cameraChanged()) {
+            cameraDirty = true;
+        }
+        if (cameraDirty && deriveCamera) {
+            view.makeLookAt(eye, lookAt, up);
+            // The look at point is framed the same whatever the aspect ratio, the wider side showing more
+            float near = frustum[0];
+            float half = near * near / Math.max(near, distance);
+            float w = aspect > 1 ? half * aspect : half;
+            float h = aspect > 1 ? half : half / aspect;
+            projection.makeFrustum(-w, w, -h, h, near, frustum[1]);
+        }
+        boolean changed = rotationDirty || elementsDirty;
+        if (cameraDirty || modelDirty) {
+            mv.makeMultiplication(view, model);
+            mvp.makeMultiplication(projection, mv);
+            cameraDirty = false;
+            modelDirty = false;
+            changed = true;
+        }
+        rotationDirty = false;
+        elementsDirty = false;
+        return changed;
+    }
+
+    // Compares the camera with the one last seen, remembering it if changed
+    private boolean cameraChanged() {
+        float[] c = camera;
+        if (c[0] == eye.getX() && c[1] == eye.getY() && c[2] == eye.getZ()
+                && c[3] == lookAt.getX() && c[4] == lookAt.getY() && c[5] == lookAt.getZ()
+                && c[6] == up.getX() && c[7] == up.getY() && c[8] == up.getZ()
+                && c[9] == frustum[0] && c[10] == frustum[1]) {
+            return false;
+        }
+        c[0] = eye.getX();
+        c[1] = eye.getY();
+        c[2] = eye.getZ();
+        c[3] = lookAt.getX();
+        c[4] = lookAt.getY();
+        c[5] = lookAt.getZ();
+        c[6] = up.getX();
+        c[7] = up.getY();
+        c[8] = up.getZ();
+        c[9] = frustum[0];
+        c[10] = frustum[1];
+        float dx = c[0] - c[3];
+        float dy = c[1] - c[4];
+        float dz = c[2] - c[5];
+        distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return true;
+    }
+}
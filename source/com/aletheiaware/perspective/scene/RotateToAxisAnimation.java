@@ -32,10 +32,11 @@ public class RotateToAxisAnimation extends Animation {
     private final Matrix mainRotation;
     private final Matrix inverseRotation;
     private final Matrix tempRotation;
-    private final int closestAxisIndexEye;
-    private final int closestAxisIndexUp;
-    private final float closestAxisSignEye;
-    private final float closestAxisSignUp;
+    private int closestAxisIndexEye;
+    private int closestAxisIndexUp;
+    private float closestAxisSignEye;
+    private float closestAxisSignUp;
+    private boolean initialized = false;
 
     public RotateToAxisAnimation(Matrix mainRotation, Matrix inverseRotation, Matrix tempRotation, Vector cameraEye, Vector cameraUp) {
         super();
@@ -44,7 +45,13 @@ public class RotateToAxisAnimation extends Animation {
         this.tempRotation = tempRotation;
         this.cameraEye = cameraEye.clone().normalize();
         this.cameraUp = cameraUp.normalize();
+    }
 
+    // The closest axes are chosen when the animation starts, as a scheduled animation may wait for another rotation to finish first
+    private void initialize() {
+        if (!inverseRotation.makeInverse(mainRotation)) {
+            System.err.println("Matrix invert failed");
+        }
         float[] dotEye = new float[3];
         float[] dotUp = new float[3];
         float[] absDotEye = new float[3];
@@ -102,6 +109,10 @@ public class RotateToAxisAnimation extends Animation {
 
     @Override
     public boolean tick() {
+        if (!initialized) {
+            initialized = true;
+            initialize();
+        }
         // Camera Eye
         if (!inverseRotation.makeInverse(mainRotation)) {
             System.err.println("Matrix invert failed");
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.Perspective;
+import com.aletheiaware.perspective.Perspective.Element;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PreparedPuzzle;
+import com.aletheiaware.perspective.utils.OccupancyGrid;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+// Discrete model of a puzzle; the cells of the blocks, goals, portals and spheres, and where a sphere ends up when dropped
+public class Board {
+
+    // Result of a drop which takes the sphere off the board
+    public static final long OUT = -1L;
+
+    public static final int DIRECTION_COUNT = 6;
+    // +X, -X, +Y, -Y, +Z, -Z
+    public static final int[][] DIRECTIONS = {
+            {1, 0, 0},
+            {-1, 0, 0},
+            {0, 1, 0},
+            {0, -1, 0},
+            {0, 0, 1},
+            {0, 0, -1},
+    };
+
+    // Straight runs of a drop, each stored as its start cell followed by its direction and length packed together
+    public static class Path {
+        private long[] data = new long[8];
+        private int count;
+
+        public void clear() {
+            count = 0;
+        }
+
+        public void add(long start, int direction, int length) {
+            if (count + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[count++] = start;
+            data[count++] = ((long) direction << 32) | length;
+        }
+
+        public long[] toArray() {
+            return Arrays.copyOf(data, count);
+        }
+
+        // True if the cell is one of the cells moved into along the path, including the one which ended each run
+        public static boolean contains(long[] path, long cell) {
+            int cx = PerspectiveUtils.unpackX(cell);
+            int cy = PerspectiveUtils.unpackY(cell);
+            int cz = PerspectiveUtils.unpackZ(cell);
+            for (int i = 0; i + 1 < path.length; i += 2) {
+                long start = path[i];
+                int[] d = DIRECTIONS[(int) (path[i + 1] >>> 32)];
+                int length = (int) path[i + 1];
+                int k = d[0] != 0 ? (cx - PerspectiveUtils.unpackX(start)) * d[0]
+                        : d[1] != 0 ? (cy - PerspectiveUtils.unpackY(start)) * d[1]
+                        : (cz - PerspectiveUtils.unpackZ(start)) * d[2];
+                if (k >= 1 && k <= length
+                        && cx == PerspectiveUtils.unpackX(start) + d[0] * k
+                        && cy == PerspectiveUtils.unpackY(start) + d[1] * k
+                        && cz == PerspectiveUtils.unpackZ(start) + d[2] * k) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final int EVENT_OUT = 0;
+    private static final int EVENT_BLOCK = 1;
+    private static final int EVENT_GOAL = 2;
+    private static final int EVENT_PORTAL = 3;
+
+    public final int size;
+    public final OccupancyGrid blocks;
+    public final OccupancyGrid goals;
+    public final Map<Long, Long> portals;
+    private long[] spheres = new long[4];
+    private int sphereCount;
+
+    public Board(int size) {
+        this(size, new OccupancyGrid(), new OccupancyGrid(), new HashMap<Long, Long>());
+    }
+
+    public Board(int size, OccupancyGrid blocks, OccupancyGrid goals, Map<Long, Long> portals) {
+        this.size = size;
+        this.blocks = blocks;
+        this.goals = goals;
+        this.portals = portals;
+    }
+
+    public static Board of(Puzzle puzzle, int size) {
+        return of(PreparedPuzzle.prepare(puzzle, size));
+    }
+
+    public static Board of(PreparedPuzzle prepared) {
+        // Grids are copied as boards are edited
+        Board board = new Board(prepared.size, new OccupancyGrid(prepared.blocks), new OccupancyGrid(prepared.goals), new HashMap<Long, Long>());
+        for (Entry<Vector, Vector> e : prepared.linkedPortals.entrySet()) {
+            board.portals.put(PerspectiveUtils.packCell(e.getKey()), PerspectiveUtils.packCell(e.getValue()));
+        }
+        for (PreparedPuzzle.Entry e : prepared.entries) {
+            if ("sphere".equals(e.type)) {
+                board.addSphere(PerspectiveUtils.packCell(e.location));
+            }
+        }
+        return board;
+    }
+
+    // Snapshot of the puzzle currently loaded into perspective, must be called on the thread which edits it
+    public static Board of(Perspective perspective) {
+        Board board = new Board(perspective.size);
+        List<Element> bs = perspective.elements.get("block");
+        if (bs != null) {
+            for (Element e : bs) {
+                board.blocks.add(e.location);
+            }
+        }
+        List<Element> gs = perspective.elements.get("goal");
+        if (gs != null) {
+            for (Element e : gs) {
+                board.goals.add(e.location);
+            }
+        }
+        for (Entry<Vector, Vector> e : perspective.linkedPortals.entrySet()) {
+            board.portals.put(PerspectiveUtils.packCell(e.getKey()), PerspectiveUtils.packCell(e.getValue()));
+        }
+        List<Element> ss = perspective.elements.get("sphere");
+        if (ss != null) {
+            for (Element e : ss) {
+                board.addSphere(PerspectiveUtils.packCell(e.location));
+            }
+        }
+        return board;
+    }
+
+    public Board copy() {
+        Board board = new Board(size, new OccupancyGrid(blocks), new OccupancyGrid(goals), new HashMap<>(portals));
+        board.spheres = Arrays.copyOf(spheres, spheres.length);
+        board.sphereCount = sphereCount;
+        return board;
+    }
+
+    public int getSphereCount() {
+        return sphereCount;
+    }
+
+    public long getSphere(int index) {
+        return spheres[index];
+    }
+
+    // Sphere cells in ascending order, which is the start state for a search
+    public long[] getSpheres() {
+        long[] s = Arrays.copyOf(spheres, sphereCount);
+        Arrays.sort(s);
+        return s;
+    }
+
+    public void addSphere(long cell) {
+        if (sphereCount == spheres.length) {
+            spheres = Arrays.copyOf(spheres, spheres.length * 2);
+        }
+        spheres[sphereCount++] = cell;
+    }
+
+    public boolean removeSphere(long cell) {
+        for (int i = 0; i < sphereCount; i++) {
+            if (spheres[i] == cell) {
+                spheres[i] = spheres[--sphereCount];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void linkPortals(long a, long b) {
+        portals.put(a, b);
+        portals.put(b, a);
+    }
+
+    public void removePortal(long cell) {
+        Long link = portals.remove(cell);
+        if (link != null) {
+            portals.remove(link);
+        }
+    }
+
+    public boolean isGoal(long cell) {
+        return cell != OUT && goals.contains(PerspectiveUtils.unpackX(cell), PerspectiveUtils.unpackY(cell), PerspectiveUtils.unpackZ(cell));
+    }
+
+    // True if every sphere is in a goal
+    public boolean isWon(long[] cells) {
+        if (cells.length == 0) {
+            return false;
+        }
+        for (long c : cells) {
+            if (!isGoal(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the cell the sphere comes to rest in when dropped from the given cell, or OUT if it leaves the board.
+    // Follows the same rules as DropAnimation, but leaps straight to the next block, goal or portal instead of stepping
+    public long drop(long cell, int direction, Path path) {
+        int[] d = DIRECTIONS[direction];
+        int x = PerspectiveUtils.unpackX(cell);
+        int y = PerspectiveUtils.unpackY(cell);
+        int z = PerspectiveUtils.unpackZ(cell);
+        // Portals can only be passed through so many times before the sphere must be going round in circles
+        for (int hop = 0; hop <= portals.size(); hop++) {
+            int limit = distanceOut(x, d[0]) + distanceOut(y, d[1]) + distanceOut(z, d[2]);
+            int k = limit;
+            int event = EVENT_OUT;
+            int kg = goals.march(x, y, z, d[0], d[1], d[2], k);
+            if (kg > 0 && kg < k) {
+                k = kg;
+                event = EVENT_GOAL;
+            }
+            long portal = OUT;
+            if (!portals.isEmpty()) {
+                for (long p : portals.keySet()) {
+                    int kp = stepsTo(x, y, z, d, p);
+                    if (kp > 0 && kp < k) {
+                        k = kp;
+                        event = EVENT_PORTAL;
+                        portal = p;
+                    }
+                }
+            }
+            int kb = blocks.march(x, y, z, d[0], d[1], d[2], k);
+            if (kb > 0 && kb <= k) {
+                k = kb;
+                event = EVENT_BLOCK;
+            }
+            if (path != null) {
+                path.add(PerspectiveUtils.packCell(x, y, z), direction, k);
+            }
+            switch (event) {
+                case EVENT_BLOCK:
+                    return PerspectiveUtils.packCell(x + d[0] * (k - 1), y + d[1] * (k - 1), z + d[2] * (k - 1));
+                case EVENT_GOAL:
+                    return PerspectiveUtils.packCell(x + d[0] * k, y + d[1] * k, z + d[2] * k);
+                case EVENT_PORTAL:
+                    long link = portals.get(portal);
+                    x = PerspectiveUtils.unpackX(link);
+                    y = PerspectiveUtils.unpackY(link);
+                    z = PerspectiveUtils.unpackZ(link);
+                    break;
+                default:
+                    return OUT;
+            }
+        }
+        return OUT;
+    }
+
+    // Steps along the axis until the coordinate is beyond the size of the board
+    private int distanceOut(int c, int d) {
+        if (d > 0) {
+            return size + 1 - c;
+        } else if (d < 0) {
+            return c + size + 1;
+        }
+        return 0;
+    }
+
+    // Steps along the direction from the given cell to the target cell, or -1 if the target is not ahead
+    private static int stepsTo(int x, int y, int z, int[] d, long target) {
+        int tx = PerspectiveUtils.unpackX(target);
+        int ty = PerspectiveUtils.unpackY(target);
+        int tz = PerspectiveUtils.unpackZ(target);
+        int k = d[0] != 0 ? (tx - x) * d[0] : d[1] != 0 ? (ty - y) * d[1] : (tz - z) * d[2];
+        if (k > 0 && tx == x + d[0] * k && ty == y + d[1] * k && tz == z + d[2] * k) {
+            return k;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import java.util.Arrays;
+
+// Caches the result of dropping a sphere from a cell in a direction, along with the cells the drop passed through
+// so an edit only invalidates the drops it could have changed. Not thread safe.
+public class DropTable {
+
+    private final Board.Path path = new Board.Path();
+    private long[] cells;
+    private byte[] directions;
+    private long[] results;
+    private long[][] paths;// Null marks a free slot
+    private boolean[] stale;
+    private int count;
+    private int hits;
+    private int misses;
+
+    public DropTable() {
+        this(256);
+    }
+
+    public DropTable(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(4, capacity * 2 - 1)));
+    }
+
+    private void allocate(int capacity) {
+        cells = new long[capacity];
+        directions = new byte[capacity];
+        results = new long[capacity];
+        paths = new long[capacity][];
+        stale = new boolean[capacity];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    public void clear() {
+        Arrays.fill(paths, null);
+        count = 0;
+    }
+
+    public long drop(Board board, long cell, int direction) {
+        int i = find(cell, direction);
+        if (paths[i] != null && !stale[i]) {
+            hits++;
+            return results[i];
+        }
+        misses++;
+        path.clear();
+        long result = board.drop(cell, direction, path);
+        if (paths[i] == null) {
+            if ((count + 1) * 4 > cells.length * 3) {
+                rehash(cells.length * 2);
+                i = find(cell, direction);
+            }
+            cells[i] = cell;
+            directions[i] = (byte) direction;
+            count++;
+        }
+        results[i] = result;
+        paths[i] = path.toArray();
+        stale[i] = false;
+        return result;
+    }
+
+    // Marks every drop which moved through the cell as stale, returning how many there were
+    public int invalidate(long cell) {
+        int n = 0;
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] != null && !stale[i] && Board.Path.contains(paths[i], cell)) {
+                stale[i] = true;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static int hash(long cell, int direction) {
+        long h = (cell * 8 + direction) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long cell, int direction) {
+        int mask = cells.length - 1;
+        int i = hash(cell, direction) & mask;
+        while (paths[i] != null && (cells[i] != cell || directions[i] != direction)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldCells = cells;
+        byte[] oldDirections = directions;
+        long[] oldResults = results;
+        long[][] oldPaths = paths;
+        boolean[] oldStale = stale;
+        allocate(capacity);
+        for (int i = 0; i < oldPaths.length; i++) {
+            if (oldPaths[i] != null) {
+                int j = find(oldCells[i], oldDirections[i]);
+                cells[j] = oldCells[i];
+                directions[j] = oldDirections[i];
+                results[j] = oldResults[i];
+                paths[j] = oldPaths[i];
+                stale[j] = oldStale[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.perspective.PerspectiveProto.Block;
+import com.aletheiaware.perspective.PerspectiveProto.Goal;
+import com.aletheiaware.perspective.PerspectiveProto.Location;
+import com.aletheiaware.perspective.PerspectiveProto.Portal;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Sphere;
+import com.aletheiaware.perspective.PerspectiveProto.World;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Generates random puzzles in parallel, keeping those the solver finds have the target score and difficulty.
+// Each candidate is built from its own seed so any puzzle can be regenerated from the seed in its description.
+public class Generator {
+
+    public static class Options {
+        public int size = 5;
+        public int blocks = 12;
+        public int goals = 1;
+        public int portals = 0;// Pairs
+        public int spheres = 1;
+        public int target = 4;// Optimal score
+        public int minStates = 16;// Difficulty, as the number of states the solver explores
+        public int maxStates = 100_000;
+        public int count = 10;// Puzzles wanted
+        public long candidates = 1_000_000;// Seeds to try before giving up
+        public long seed = 0;
+        public String shader = "";
+        public String blockMesh = "block";
+        public String blockColour = "grey";
+        public String goalMesh = "goal";
+        public String goalColour = "green";
+        public String portalMesh = "portal";
+        public String portalColour = "purple";
+        public String sphereMesh = "sphere";
+        public String sphereColour = "blue";
+        public String texture = "";
+        public String material = "matte";
+    }
+
+    public static class Candidate {
+        public final long seed;
+        public final Board board;
+        public final Solver.Result result;
+
+        Candidate(long seed, Board board, Solver.Result result) {
+            this.seed = seed;
+            this.board = board;
+            this.result = result;
+        }
+    }
+
+    // Seeds handled by a single task before it stops splitting
+    private static final int THRESHOLD = 32;
+
+    private final Options options;
+    private final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<Candidate> found = new ConcurrentLinkedQueue<>();
+    // Canonical keys of accepted boards, so rotations and mirror images of a puzzle are only kept once
+    private final Set<Solver.State> canonical = Collections.newSetFromMap(new ConcurrentHashMap<Solver.State, Boolean>());
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicLong tried = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Generator(Options options) {
+        this(options, ForkJoinPool.commonPool());
+    }
+
+    public Generator(Options options, ForkJoinPool pool) {
+        this.options = options;
+        this.pool = pool;
+    }
+
+    public long getTried() {
+        return tried.get();
+    }
+
+    // Candidates thrown out by the drop checks before reaching the solver
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public List<Candidate> generate() {
+        found.clear();
+        canonical.clear();
+        accepted.set(0);
+        tried.set(0);
+        rejected.set(0);
+        pool.invoke(new Search(options.seed, options.seed + options.candidates));
+        List<Candidate> candidates = new ArrayList<>(found);
+        // Tasks finish in any order, sort so the world lists puzzles by seed
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Long.compare(a.seed, b.seed);
+            }
+        });
+        if (candidates.size() > options.count) {
+            candidates = candidates.subList(0, options.count);
+        }
+        return candidates;
+    }
+
+    public World generateWorld(String name) {
+        World.Builder wb = World.newBuilder().setName(name);
+        for (Candidate c : generate()) {
+            wb.addPuzzle(toPuzzle(c));
+        }
+        return wb.build();
+    }
+
+    public void writeWorld(File file, String name) throws IOException {
+        PerspectiveUtils.writeWorld(file, generateWorld(name));
+    }
+
+    private class Search extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+
+        Search(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (accepted.get() >= options.count) {
+                return;
+            }
+            if (to - from > THRESHOLD) {
+                long middle = from + (to - from) / 2;
+                invokeAll(new Search(from, middle), new Search(middle, to));
+                return;
+            }
+            for (long s = from; s < to && accepted.get() < options.count; s++) {
+                Candidate c = evaluate(s);
+                if (c != null && canonical.add(new Solver.State(Symmetry.getCanonicalKey(c.board)))) {
+                    found.add(c);
+                    accepted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Builds and solves the candidate for the seed, returning null if it is rejected
+    public Candidate evaluate(long seed) {
+        tried.incrementAndGet();
+        Board board = createBoard(seed);
+        DropTable table = new DropTable();
+        if (board == null || !isPromising(board, table)) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        Solver.Result result = new Solver(board, table).solve(options.maxStates, new Solver.Monitor() {
+            @Override
+            public boolean isCancelled() {
+                return accepted.get() >= options.count;
+            }
+        });
+        if (result == null || !result.solvable || result.score != options.target || result.states < options.minStates) {
+            return null;
+        }
+        return new Candidate(seed, board, result);
+    }
+
+    // Cheap checks using only the drops from the start; a board is dead if every drop loses a sphere,
+    // and trivial if a single drop wins when more were wanted
+    private boolean isPromising(Board board, DropTable table) {
+        long[] start = board.getSpheres();
+        boolean alive = false;
+        for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+            boolean out = false;
+            boolean won = true;
+            for (long s : start) {
+                long c = table.drop(board, s, d);
+                if (c == Board.OUT) {
+                    out = true;
+                    break;
+                }
+                won &= board.isGoal(c);
+            }
+            if (!out) {
+                if (won && options.target > 1) {
+                    return false;
+                }
+                alive = true;
+            }
+        }
+        return alive;
+    }
+
+    public Board createBoard(long seed) {
+        Random random = new Random(seed);
+        Board board = new Board(options.size);
+        int half = options.size / 2;
+        int width = half * 2 + 1;
+        int cells = width * width * width;
+        if (options.blocks + options.goals + options.portals * 2 + options.spheres > cells) {
+            return null;
+        }
+        // Cells taken by anything, so no two elements share a cell
+        List<Long> used = new ArrayList<>();
+        for (int i = 0; i < options.blocks; i++) {
+            long c = randomCell(random, half, width, used);
+            board.blocks.add(PerspectiveUtils.unpackX(c), PerspectiveUtils.unpackY(c), PerspectiveUtils.unpackZ(c));
+        }
+        for (int i = 0; i < options.goals; i++) {
+            long c = randomCell(random, half, width, used);
+            board.goals.add(PerspectiveUtils.unpackX(c), PerspectiveUtils.unpackY(c), PerspectiveUtils.unpackZ(c));
+        }
+        for (int i = 0; i < options.portals; i++) {
+            board.linkPortals(randomCell(random, half, width, used), randomCell(random, half, width, used));
+        }
+        for (int i = 0; i < options.spheres; i++) {
+            board.addSphere(randomCell(random, half, width, used));
+        }
+        return board;
+    }
+
+    private static long randomCell(Random random, int half, int width, List<Long> used) {
+        while (true) {
+            long c = PerspectiveUtils.packCell(random.nextInt(width) - half, random.nextInt(width) - half, random.nextInt(width) - half);
+            if (!used.contains(c)) {
+                used.add(c);
+                return c;
+            }
+        }
+    }
+
+    public Puzzle toPuzzle(Candidate candidate) {
+        Board board = candidate.board;
+        Puzzle.Builder pb = Puzzle.newBuilder()
+                .setName("Generated " + candidate.seed)
+                .setDescription("Seed " + candidate.seed + ", " + candidate.result.states + " states")
+                .setTarget(candidate.result.score);
+        int half = board.size / 2;
+        int b = 0;
+        int g = 0;
+        for (int x = -half; x <= half; x++) {
+            for (int y = -half; y <= half; y++) {
+                for (int z = -half; z <= half; z++) {
+                    if (board.blocks.contains(x, y, z)) {
+                        pb.addBlock(Block.newBuilder()
+                            .setName("b" + b++)
+                            .setMesh(options.blockMesh)
+                            .setColour(options.blockColour)
+                            .setLocation(toLocation(x, y, z))
+                            .setTexture(options.texture)
+                            .setMaterial(options.material)
+                            .setShader(options.shader));
+                    }
+                    if (board.goals.contains(x, y, z)) {
+                        pb.addGoal(Goal.newBuilder()
+                            .setName("g" + g++)
+                            .setMesh(options.goalMesh)
+                            .setColour(options.goalColour)
+                            .setLocation(toLocation(x, y, z))
+                            .setTexture(options.texture)
+                            .setMaterial(options.material)
+                            .setShader(options.shader));
+                    }
+                }
+            }
+        }
+        int p = 0;
+        for (Long cell : board.portals.keySet()) {
+            pb.addPortal(Portal.newBuilder()
+                .setName("p" + p++)
+                .setMesh(options.portalMesh)
+                .setColour(options.portalColour)
+                .setLocation(toLocation(cell))
+                .setLink(toLocation(board.portals.get(cell)))
+                .setTexture(options.texture)
+                .setMaterial(options.material)
+                .setShader(options.shader));
+        }
+        for (int i = 0; i < board.getSphereCount(); i++) {
+            pb.addSphere(Sphere.newBuilder()
+                .setName("s" + i)
+                .setMesh(options.sphereMesh)
+                .setColour(options.sphereColour)
+                .setLocation(toLocation(board.getSphere(i)))
+                .setTexture(options.texture)
+                .setMaterial(options.material)
+                .setShader(options.shader));
+        }
+        return pb.build();
+    }
+
+    private static Location toLocation(long cell) {
+        return toLocation(PerspectiveUtils.unpackX(cell), PerspectiveUtils.unpackY(cell), PerspectiveUtils.unpackZ(cell));
+    }
+
+    private static Location toLocation(int x, int y, int z) {
+        return Location.newBuilder()
+            .setX(x)
+            .setY(y)
+            .setZ(z)
+            .build();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Drops remaining to a win, and the drop which gets there, for every state reachable from the start of a puzzle.
+// Built once with a breadth first search forwards to find the states, then backwards from the winning states, after
+// which a hint is a single lookup. Tables hold the puzzle in its canonical orientation, so every rotation and mirror
+// image of a puzzle shares one, and are kept per canonical hash for every session in the process.
+public class HintTable {
+
+    public static final int UNKNOWN = -1;
+    public static final String EXTENSION = ".hint";
+
+    private static final int VERSION = 1;
+    private static final ConcurrentHashMap<String, HintTable> tables = new ConcurrentHashMap<>();
+
+    public final int size;
+    public final int sphereCount;
+    private final int stateCount;
+    private final long[] cells;// State by sphere, cells of each state in ascending order
+    private final short[] distances;// UNKNOWN if no win can be reached
+    private final byte[] directions;// UNKNOWN if won or no win can be reached
+    private final int[] slots;// State index plus one, zero marks a free slot
+
+    private HintTable(int size, int sphereCount, int stateCount, long[] cells, short[] distances, byte[] directions) {
+        this.size = size;
+        this.sphereCount = sphereCount;
+        this.stateCount = stateCount;
+        this.cells = cells;
+        this.distances = distances;
+        this.directions = directions;
+        this.slots = new int[Integer.highestOneBit(Math.max(2, stateCount) * 4 - 1)];
+        for (int i = 0; i < stateCount; i++) {
+            int s = slot(cells, i * sphereCount);
+            slots[s] = i + 1;
+        }
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    // Key tables are shared under, equal for every rotation and mirror image of the puzzle
+    public static String getKey(Puzzle puzzle, int size) throws NoSuchAlgorithmException {
+        return Symmetry.getCanonicalHash(puzzle) + "-" + size;
+    }
+
+    // Shared table for the puzzle, built on first use. Returns null if the puzzle has too many states
+    public static HintTable get(Puzzle puzzle, int size) throws NoSuchAlgorithmException {
+        return get(puzzle, size, null);
+    }
+
+    // As above, also returns null if the build is cancelled
+    public static HintTable get(Puzzle puzzle, int size, Solver.Monitor monitor) throws NoSuchAlgorithmException {
+        String key = getKey(puzzle, size);
+        HintTable table = tables.get(key);
+        if (table == null) {
+            table = build(Symmetry.apply(Symmetry.getCanonicalSymmetry(puzzle, true), Board.of(puzzle, size)), Solver.DEFAULT_MAX_STATES, monitor);
+            if (table != null) {
+                HintTable existing = tables.putIfAbsent(key, table);
+                if (existing != null) {
+                    table = existing;
+                }
+            }
+        }
+        return table;
+    }
+
+    // Shares a table read from elsewhere, such as one shipped with the world
+    public static void put(String key, HintTable table) {
+        tables.put(key, table);
+    }
+
+    public static void clearShared() {
+        tables.clear();
+    }
+
+    // Shared table for the puzzle, read from the directory if written before, otherwise built and written there
+    public static HintTable load(File directory, Puzzle puzzle, int size) throws IOException, NoSuchAlgorithmException {
+        String key = getKey(puzzle, size);
+        HintTable table = tables.get(key);
+        if (table != null) {
+            return table;
+        }
+        File file = new File(directory, key + EXTENSION);
+        if (file.exists()) {
+            try (FileInputStream in = new FileInputStream(file)) {
+                table = read(in);
+            }
+            put(key, table);
+            return table;
+        }
+        table = get(puzzle, size);
+        if (table != null) {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+            }
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                table.write(out);
+            }
+        }
+        return table;
+    }
+
+    // Returns null if cancelled or if more than maxStates states can be reached
+    public static HintTable build(Board board, int maxStates, Solver.Monitor monitor) {
+        Solver solver = new Solver(board);
+        int k = board.getSphereCount();
+        Map<Solver.State, Integer> seen = new HashMap<>();
+        List<long[]> states = new ArrayList<>();
+        int[] edges = new int[64 * Board.DIRECTION_COUNT];// Next state for each state and direction, UNKNOWN if lost
+        long[] start = board.getSpheres();
+        seen.put(new Solver.State(start), 0);
+        states.add(start);
+        for (int head = 0; head < states.size(); head++) {
+            if ((head & 0xFF) == 0 && monitor != null && monitor.isCancelled()) {
+                return null;
+            }
+            if ((head + 1) * Board.DIRECTION_COUNT > edges.length) {
+                edges = Arrays.copyOf(edges, edges.length * 2);
+            }
+            long[] s = states.get(head);
+            boolean won = board.isWon(s);
+            for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+                int e = head * Board.DIRECTION_COUNT + d;
+                edges[e] = UNKNOWN;
+                // The game ends once won
+                long[] n = won ? null : solver.next(s, d);
+                if (n == null) {
+                    continue;
+                }
+                Solver.State key = new Solver.State(n);
+                Integer index = seen.get(key);
+                if (index == null) {
+                    index = states.size();
+                    if (index >= maxStates) {
+                        return null;
+                    }
+                    seen.put(key, index);
+                    states.add(n);
+                }
+                edges[e] = index;
+            }
+        }
+        int count = states.size();
+        seen = null;
+
+        // Reverse the edges, grouping the edges into each state
+        int[] offsets = new int[count + 1];
+        for (int e = 0; e < count * Board.DIRECTION_COUNT; e++) {
+            if (edges[e] != UNKNOWN) {
+                offsets[edges[e] + 1]++;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] incoming = new int[offsets[count]];
+        int[] fill = Arrays.copyOf(offsets, count);
+        for (int e = 0; e < count * Board.DIRECTION_COUNT; e++) {
+            if (edges[e] != UNKNOWN) {
+                incoming[fill[edges[e]]++] = e;
+            }
+        }
+
+        // Backwards from every winning state
+        short[] distances = new short[count];
+        byte[] directions = new byte[count];
+        Arrays.fill(distances, (short) UNKNOWN);
+        Arrays.fill(directions, (byte) UNKNOWN);
+        int[] queue = new int[count];
+        int tail = 0;
+        for (int i = 0; i < count; i++) {
+            if (board.isWon(states.get(i))) {
+                distances[i] = 0;
+                queue[tail++] = i;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int v = queue[head];
+            for (int j = offsets[v]; j < offsets[v + 1]; j++) {
+                int u = incoming[j] / Board.DIRECTION_COUNT;
+                if (distances[u] == UNKNOWN) {
+                    distances[u] = (short) Math.min(Short.MAX_VALUE, distances[v] + 1);
+                    directions[u] = (byte) (incoming[j] % Board.DIRECTION_COUNT);
+                    queue[tail++] = u;
+                }
+            }
+        }
+
+        long[] cells = new long[count * k];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(states.get(i), 0, cells, i * k, k);
+        }
+        return new HintTable(board.size, k, count, cells, distances, directions);
+    }
+
+    private static int hash(long[] cells, int offset, int length) {
+        long h = 1;
+        for (int i = 0; i < length; i++) {
+            h = h * 0x9E3779B97F4A7C15L + cells[offset + i];
+        }
+        return (int) (h ^ (h >>> 29));
+    }
+
+    // Slot holding the state, or the free slot it would go in
+    private int slot(long[] state, int offset) {
+        int mask = slots.length - 1;
+        int i = hash(state, offset, sphereCount) & mask;
+        while (slots[i] != 0 && !matches(slots[i] - 1, state, offset)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private boolean matches(int index, long[] state, int offset) {
+        int o = index * sphereCount;
+        for (int i = 0; i < sphereCount; i++) {
+            if (cells[o + i] != state[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Index of the state, cells in ascending order in the canonical orientation, or UNKNOWN if it cannot be reached
+    public int find(long[] state) {
+        if (state.length != sphereCount) {
+            return UNKNOWN;
+        }
+        return slots[slot(state, 0)] - 1;
+    }
+
+    // Drops remaining to a win, or UNKNOWN
+    public int getDistance(int index) {
+        return index == UNKNOWN ? UNKNOWN : distances[index];
+    }
+
+    // Index into Board.DIRECTIONS of the next drop towards a win, or UNKNOWN
+    public int getDirection(int index) {
+        return index == UNKNOWN ? UNKNOWN : directions[index];
+    }
+
+    // Maps the cells of the puzzle as played, under the symmetry returned by Symmetry.getCanonicalSymmetry, onto the
+    // canonical cells of the table in ascending order. The cells are overwritten.
+    public static void canonicalize(int symmetry, long[] cells) {
+        Symmetry.apply(symmetry, cells, 0, cells.length, cells, 0);
+        Arrays.sort(cells);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(VERSION);
+        data.writeInt(size);
+        data.writeInt(sphereCount);
+        data.writeInt(stateCount);
+        for (int i = 0; i < stateCount * sphereCount; i++) {
+            data.writeLong(cells[i]);
+        }
+        for (int i = 0; i < stateCount; i++) {
+            data.writeShort(distances[i]);
+        }
+        data.write(directions, 0, stateCount);
+        data.flush();
+    }
+
+    public static HintTable read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported hint table version: " + version);
+        }
+        int size = data.readInt();
+        int sphereCount = data.readInt();
+        int stateCount = data.readInt();
+        long[] cells = new long[stateCount * sphereCount];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = data.readLong();
+        }
+        short[] distances = new short[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            distances[i] = data.readShort();
+        }
+        byte[] directions = new byte[stateCount];
+        data.readFully(directions);
+        return new HintTable(size, sphereCount, stateCount, cells, distances, directions);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Solution;
+import com.aletheiaware.perspective.PreparedPuzzle;
+import com.aletheiaware.perspective.utils.MoveLog;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Iterative deepening A* over the sphere cells, for puzzles whose states do not fit in memory for a breadth first
+// search. Memory is the current path plus a fixed size transposition table, which remembers the depth each state was
+// reached at this iteration and the best lower bound learnt for it, and is simply overwritten when slots collide.
+// States are identified in the table by a 64 bit fingerprint. Finds the same optimal score as Solver.
+public class IdaSolver {
+
+    public static final int DEFAULT_TABLE_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    private static final int FOUND = -1;
+    private static final int CANCELLED = -2;
+    private static final int INFINITE = Integer.MAX_VALUE;
+    // Drops looked ahead for a single sphere when estimating how far it is from a goal
+    private static final int LOOKAHEAD = 3;
+    private static final int MAX_ESTIMATES = 1 << 16;
+
+    private final Board board;
+    // Transposition table
+    private final long[] keys;
+    private final int[] depths;
+    private final int[] bounds;
+    private final int[] iterations;
+    // Lower bound on drops for a single sphere to reach a goal, by cell
+    private final Map<Long, Integer> estimates = new HashMap<>();
+    private final long[] estimateFrontier = new long[256];
+    private int[] path = new int[DEFAULT_MAX_DEPTH];
+    private long[] pathKeys = new long[DEFAULT_MAX_DEPTH + 1];
+    private Solver.Monitor monitor;
+    private int iteration;
+    private int nodes;
+
+    public IdaSolver(Board board) {
+        this(board, DEFAULT_TABLE_SIZE);
+    }
+
+    public IdaSolver(Board board, int tableSize) {
+        this.board = board;
+        int capacity = Integer.highestOneBit(Math.max(2, tableSize));
+        keys = new long[capacity];
+        depths = new int[capacity];
+        bounds = new int[capacity];
+        iterations = new int[capacity];
+    }
+
+    public Board getBoard() {
+        return board;
+    }
+
+    public Solver.Result solve(Solver.Monitor monitor) {
+        return solve(DEFAULT_MAX_DEPTH, monitor);
+    }
+
+    // Returns null if cancelled. If no solution is found within maxDepth drops the result is incomplete
+    public Solver.Result solve(int maxDepth, Solver.Monitor monitor) {
+        this.monitor = monitor;
+        nodes = 0;
+        long[] start = board.getSpheres();
+        if (path.length < maxDepth) {
+            path = new int[maxDepth];
+            pathKeys = new long[maxDepth + 1];
+        }
+        int bound = estimate(start);
+        while (bound <= maxDepth) {
+            iteration++;
+            pathKeys[0] = fingerprint(start);
+            int t = search(start, 0, bound);
+            if (t == CANCELLED) {
+                return null;
+            }
+            if (t == FOUND) {
+                return new Solver.Result(true, true, bound, Arrays.copyOf(path, bound), nodes);
+            }
+            if (t == INFINITE) {
+                // Every line of play loses a sphere or repeats
+                return new Solver.Result(false, true, -1, null, nodes);
+            }
+            bound = t;
+        }
+        return new Solver.Result(false, false, -1, null, nodes);
+    }
+
+    // Returns FOUND, CANCELLED, or the lowest estimate of the total drops which went over the bound
+    private int search(long[] cells, int depth, int bound) {
+        if ((++nodes & 0xFFF) == 0 && monitor != null && monitor.isCancelled()) {
+            return CANCELLED;
+        }
+        long key = pathKeys[depth];
+        int slot = (int) (key ^ (key >>> 32)) & (keys.length - 1);
+        boolean stored = keys[slot] == key;
+        int h = estimate(cells);
+        if (stored) {
+            h = Math.max(h, bounds[slot]);
+            if (iterations[slot] == iteration && depths[slot] <= depth) {
+                // Already searched this iteration from as shallow or shallower, with at least as much budget left
+                return Math.max(depth + h, bound + 1);
+            }
+        }
+        int f = depth + h;
+        if (f > bound) {
+            return f;
+        }
+        if (h == 0) {
+            return FOUND;
+        }
+        keys[slot] = key;
+        depths[slot] = depth;
+        iterations[slot] = iteration;
+        bounds[slot] = h;
+        int min = INFINITE;
+        boolean cycled = false;
+        for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+            long[] n = next(cells, d);
+            if (n == null) {
+                continue;
+            }
+            long k = fingerprint(n);
+            if (onPath(k, depth)) {
+                cycled = true;
+                continue;
+            }
+            path[depth] = d;
+            pathKeys[depth + 1] = k;
+            int t = search(n, depth + 1, bound);
+            if (t == FOUND || t == CANCELLED) {
+                return t;
+            }
+            if (t < min) {
+                min = t;
+            }
+        }
+        // Learn a better lower bound for this state, unless the slot has been taken since. Not when a move led back
+        // up the path, as the bound would then only hold for states reached along this path
+        if (keys[slot] == key && min != INFINITE && !cycled) {
+            bounds[slot] = Math.max(bounds[slot], min - depth);
+        }
+        return min;
+    }
+
+    // Cells of the spheres after dropping them all in the direction, or null if any leaves the board. Drops are
+    // worked out afresh rather than cached, a DropTable keeps every path it has seen which grows without bound over a
+    // search this size
+    private long[] next(long[] cells, int direction) {
+        long[] n = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            long c = board.drop(cells[i], direction, null);
+            if (c == Board.OUT) {
+                return null;
+            }
+            n[i] = c;
+        }
+        if (n.length > 1) {
+            Arrays.sort(n);
+        }
+        return n;
+    }
+
+    private boolean onPath(long key, int depth) {
+        for (int i = 0; i <= depth; i++) {
+            if (pathKeys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Admissible; every sphere has to reach a goal, so the state needs at least as many drops as the furthest sphere
+    private int estimate(long[] cells) {
+        int h = 0;
+        for (long c : cells) {
+            h = Math.max(h, estimate(c));
+        }
+        return h;
+    }
+
+    // Fewest drops for the sphere alone to reach a goal, looking LOOKAHEAD drops ahead, or LOOKAHEAD + 1 if none do.
+    // Spheres do not block each other, so this never overestimates.
+    private int estimate(long cell) {
+        if (board.isGoal(cell)) {
+            return 0;
+        }
+        Integer e = estimates.get(cell);
+        if (e != null) {
+            return e;
+        }
+        long[] frontier = estimateFrontier;
+        int size = 0;
+        frontier[size++] = cell;
+        int start = 0;
+        int result = LOOKAHEAD + 1;
+        search:
+        for (int level = 1; level <= LOOKAHEAD && start < size; level++) {
+            int end = size;
+            for (int i = start; i < end; i++) {
+                for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+                    long n = board.drop(frontier[i], d, null);
+                    if (n == Board.OUT) {
+                        continue;
+                    }
+                    if (board.isGoal(n)) {
+                        result = level;
+                        break search;
+                    }
+                    if (!contains(frontier, size, n)) {
+                        if (size == frontier.length) {
+                            // Cells beyond here go unexplored, and one of them may reach a goal at the next level
+                            result = level;
+                            break search;
+                        }
+                        frontier[size++] = n;
+                    }
+                }
+            }
+            start = end;
+        }
+        if (estimates.size() >= MAX_ESTIMATES) {
+            estimates.clear();
+        }
+        estimates.put(cell, result);
+        return result;
+    }
+
+    private static boolean contains(long[] cells, int size, long cell) {
+        for (int i = 0; i < size; i++) {
+            if (cells[i] == cell) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long fingerprint(long[] cells) {
+        long h = 0xCBF29CE484222325L;
+        for (long c : cells) {
+            h = (h ^ c) * 0x100000001B3L;
+            h ^= h >>> 31;
+        }
+        // Zero marks an empty slot
+        return h == 0 ? 1 : h;
+    }
+
+    // Solves the puzzle and plays the drops back as a Solution, recording every sphere's cell after each drop as the
+    // game does. Returns null if cancelled or if no solution is found within maxDepth drops
+    public static Solution solve(Puzzle puzzle, int size, int maxDepth, Solver.Monitor monitor) {
+        PreparedPuzzle prepared = PreparedPuzzle.prepare(puzzle, size);
+        Board board = Board.of(prepared);
+        Solver.Result result = new IdaSolver(board).solve(maxDepth, monitor);
+        if (result == null || !result.solvable) {
+            return null;
+        }
+        // From the same capped cells the board was built from
+        int count = board.getSphereCount();
+        String[] names = new String[count];
+        long[] cells = new long[count];
+        int i = 0;
+        for (PreparedPuzzle.Entry e : prepared.entries) {
+            if ("sphere".equals(e.type)) {
+                names[i] = e.name;
+                cells[i] = PerspectiveUtils.packCell(e.location);
+                i++;
+            }
+        }
+        MoveLog log = new MoveLog();
+        for (int d : result.directions) {
+            for (i = 0; i < count; i++) {
+                cells[i] = board.drop(cells[i], d, null);
+                log.addMove(names[i], PerspectiveUtils.unpackX(cells[i]), PerspectiveUtils.unpackY(cells[i]), PerspectiveUtils.unpackZ(cells[i]));
+            }
+        }
+        log.setScore(result.score);
+        return log.toSolution();
+    }
+}
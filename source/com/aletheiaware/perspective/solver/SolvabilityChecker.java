@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps the solvability and optimal score of a puzzle up to date as it is edited. Edits are queued and applied on a
+// background thread, a search still running for an older version of the board is cancelled, and drops cached from
+// earlier searches are reused unless the edit touched a cell they passed through.
+public class SolvabilityChecker {
+
+    // Called from the checker thread, hosts must post to their UI thread
+    public interface Listener {
+        void onChecked(int version, Solver.Result result);
+    }
+
+    private static final int RESET = 0;
+    private static final int BLOCK = 1;
+    private static final int GOAL = 2;
+    private static final int SPHERE = 3;
+    private static final int PORTAL = 4;
+
+    private static final class Edit {
+        final int kind;
+        final boolean add;
+        final long cell;
+        final long link;
+        final Board board;
+
+        Edit(int kind, boolean add, long cell, long link, Board board) {
+            this.kind = kind;
+            this.add = add;
+            this.cell = cell;
+            this.link = link;
+            this.board = board;
+        }
+    }
+
+    private final Listener listener;
+    private final ExecutorService executor;
+    private final Queue<Edit> edits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger version = new AtomicInteger();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final DropTable table = new DropTable();
+    private int maxStates = Solver.DEFAULT_MAX_STATES;
+    private Board board;
+    private Solver.Result last;
+
+    public SolvabilityChecker(Listener listener) {
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SolvabilityChecker");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    public void setMaxStates(int maxStates) {
+        this.maxStates = maxStates;
+    }
+
+    public int getVersion() {
+        return version.get();
+    }
+
+    // Replaces the whole board, eg when a puzzle is imported
+    public void reset(Board board) {
+        submit(new Edit(RESET, true, 0, 0, board));
+    }
+
+    public void onElementAdded(String type, Vector location) {
+        onElementChanged(type, location, true);
+    }
+
+    public void onElementRemoved(String type, Vector location) {
+        onElementChanged(type, location, false);
+    }
+
+    public void onPortalsLinked(Vector a, Vector b) {
+        submit(new Edit(PORTAL, true, PerspectiveUtils.packCell(a), PerspectiveUtils.packCell(b), null));
+    }
+
+    private void onElementChanged(String type, Vector location, boolean add) {
+        int kind;
+        switch (type) {
+            case "block":
+                kind = BLOCK;
+                break;
+            case "goal":
+                kind = GOAL;
+                break;
+            case "sphere":
+                kind = SPHERE;
+                break;
+            case "portal":
+                if (add) {
+                    // Portals have no effect until linked
+                    return;
+                }
+                kind = PORTAL;
+                break;
+            default:
+                return;
+        }
+        // Packed now as sphere locations change as they move
+        submit(new Edit(kind, add, PerspectiveUtils.packCell(location), 0, null));
+    }
+
+    public void shutdown() {
+        version.incrementAndGet();
+        executor.shutdownNow();
+    }
+
+    private void submit(Edit edit) {
+        edits.add(edit);
+        // Any search still running is now stale
+        version.incrementAndGet();
+        if (pending.compareAndSet(false, true)) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            });
+        }
+    }
+
+    private void check() {
+        pending.set(false);
+        final int v = version.get();
+        boolean reuse = last != null && last.complete;
+        Edit e;
+        while ((e = edits.poll()) != null) {
+            reuse &= apply(e);
+        }
+        if (board == null) {
+            return;
+        }
+        Solver.Result result;
+        if (reuse) {
+            // No cached drop passed through an edited cell and the spheres and goals are unchanged
+            result = last;
+        } else {
+            result = new Solver(board, table).solve(maxStates, new Solver.Monitor() {
+                @Override
+                public boolean isCancelled() {
+                    return version.get() != v;
+                }
+            });
+            if (result == null) {
+                // A newer edit has already queued another check
+                last = null;
+                return;
+            }
+            last = result;
+        }
+        if (version.get() == v) {
+            listener.onChecked(v, result);
+        }
+    }
+
+    // Applies the edit, returning true if the previous result still holds
+    private boolean apply(Edit e) {
+        switch (e.kind) {
+            case RESET:
+                board = e.board;
+                table.clear();
+                return false;
+            case BLOCK:
+                if (board == null) {
+                    return false;
+                }
+                if (e.add) {
+                    board.blocks.add(PerspectiveUtils.unpackX(e.cell), PerspectiveUtils.unpackY(e.cell), PerspectiveUtils.unpackZ(e.cell));
+                } else {
+                    board.blocks.remove(PerspectiveUtils.unpackX(e.cell), PerspectiveUtils.unpackY(e.cell), PerspectiveUtils.unpackZ(e.cell));
+                }
+                return table.invalidate(e.cell) == 0;
+            case GOAL:
+                if (board == null) {
+                    return false;
+                }
+                if (e.add) {
+                    board.goals.add(PerspectiveUtils.unpackX(e.cell), PerspectiveUtils.unpackY(e.cell), PerspectiveUtils.unpackZ(e.cell));
+                } else {
+                    board.goals.remove(PerspectiveUtils.unpackX(e.cell), PerspectiveUtils.unpackY(e.cell), PerspectiveUtils.unpackZ(e.cell));
+                }
+                table.invalidate(e.cell);
+                // Goals also decide which states are winning
+                return false;
+            case SPHERE:
+                if (board == null) {
+                    return false;
+                }
+                if (e.add) {
+                    board.addSphere(e.cell);
+                } else {
+                    board.removeSphere(e.cell);
+                }
+                // Drops don't depend on the other spheres, but the start state has changed
+                return false;
+            case PORTAL:
+                if (board == null) {
+                    return false;
+                }
+                int n = 0;
+                Long old = board.portals.get(e.cell);
+                if (old != null) {
+                    n += table.invalidate(old);
+                    board.removePortal(e.cell);
+                }
+                if (e.add) {
+                    board.linkPortals(e.cell, e.link);
+                    n += table.invalidate(e.link);
+                }
+                n += table.invalidate(e.cell);
+                return n == 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Breadth first search over the sphere cells for the fewest drops which bring every sphere into a goal.
+// Every drop is preceded by a rotation to an axis, so the number of drops is the optimal score.
+public class Solver {
+
+    public static final int DEFAULT_MAX_STATES = 1_000_000;
+
+    public interface Monitor {
+        boolean isCancelled();
+    }
+
+    public static class Result {
+        public final boolean solvable;
+        public final boolean complete;// False if the search gave up before proving the puzzle unsolvable
+        public final int score;// -1 if not solvable
+        public final int[] directions;// Drop directions, indices into Board.DIRECTIONS
+        public final int states;
+
+        public Result(boolean solvable, boolean complete, int score, int[] directions, int states) {
+            this.solvable = solvable;
+            this.complete = complete;
+            this.score = score;
+            this.directions = directions;
+            this.states = states;
+        }
+
+        @Override
+        public String toString() {
+            if (solvable) {
+                return "Solvable in " + score + " " + Arrays.toString(directions) + " after " + states + " states";
+            }
+            return (complete ? "Unsolvable" : "Unknown") + " after " + states + " states";
+        }
+    }
+
+    // Sphere cells in ascending order, so states differing only in which sphere is where are the same
+    static final class State {
+        final long[] cells;
+        private final int hash;
+
+        State(long[] cells) {
+            this.cells = cells;
+            this.hash = Arrays.hashCode(cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof State && Arrays.equals(cells, ((State) o).cells);
+        }
+    }
+
+    private final Board board;
+    private final DropTable table;
+
+    public Solver(Board board) {
+        this(board, new DropTable());
+    }
+
+    public Solver(Board board, DropTable table) {
+        this.board = board;
+        this.table = table;
+    }
+
+    public Board getBoard() {
+        return board;
+    }
+
+    public DropTable getTable() {
+        return table;
+    }
+
+    public Result solve(Monitor monitor) {
+        return solve(DEFAULT_MAX_STATES, monitor);
+    }
+
+    // Returns null if cancelled
+    public Result solve(int maxStates, Monitor monitor) {
+        long[] start = board.getSpheres();
+        if (board.isWon(start)) {
+            return new Result(true, true, 0, new int[0], 1);
+        }
+        Map<State, Integer> seen = new HashMap<>();
+        List<long[]> states = new ArrayList<>();
+        int[] parents = new int[64];
+        byte[] moves = new byte[64];
+        seen.put(new State(start), 0);
+        states.add(start);
+        for (int head = 0; head < states.size(); head++) {
+            if ((head & 0xFF) == 0 && monitor != null && monitor.isCancelled()) {
+                return null;
+            }
+            long[] s = states.get(head);
+            for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+                long[] n = next(s, d);
+                if (n == null) {
+                    continue;
+                }
+                State key = new State(n);
+                if (seen.containsKey(key)) {
+                    continue;
+                }
+                int index = states.size();
+                if (index == parents.length) {
+                    parents = Arrays.copyOf(parents, index * 2);
+                    moves = Arrays.copyOf(moves, index * 2);
+                }
+                seen.put(key, index);
+                states.add(n);
+                parents[index] = head;
+                moves[index] = (byte) d;
+                if (board.isWon(n)) {
+                    return new Result(true, true, depth(parents, index), trace(parents, moves, index), states.size());
+                }
+                if (states.size() >= maxStates) {
+                    return new Result(false, false, -1, null, states.size());
+                }
+            }
+        }
+        return new Result(false, true, -1, null, states.size());
+    }
+
+    // Cells of the spheres after dropping them all in the direction, or null if any leaves the board
+    long[] next(long[] cells, int direction) {
+        long[] n = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            long c = table.drop(board, cells[i], direction);
+            if (c == Board.OUT) {
+                return null;
+            }
+            n[i] = c;
+        }
+        if (n.length > 1) {
+            Arrays.sort(n);
+        }
+        return n;
+    }
+
+    private static int depth(int[] parents, int index) {
+        int depth = 0;
+        while (index != 0) {
+            index = parents[index];
+            depth++;
+        }
+        return depth;
+    }
+
+    private static int[] trace(int[] parents, byte[] moves, int index) {
+        int[] directions = new int[depth(parents, index)];
+        for (int i = directions.length - 1; i >= 0; i--) {
+            directions[i] = moves[index];
+            index = parents[index];
+        }
+        return directions;
+    }
+}
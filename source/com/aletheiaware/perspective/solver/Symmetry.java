@@ -0,0 +1,361 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.perspective.PerspectiveProto.Block;
+import com.aletheiaware.perspective.PerspectiveProto.Dialog;
+import com.aletheiaware.perspective.PerspectiveProto.Goal;
+import com.aletheiaware.perspective.PerspectiveProto.Location;
+import com.aletheiaware.perspective.PerspectiveProto.Portal;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Scenery;
+import com.aletheiaware.perspective.PerspectiveProto.Sphere;
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+// The 48 symmetries of the cube; 24 rotations followed by 24 reflections. Puzzles which are rotations or mirror images
+// of each other play the same, so they share a canonical form, the one whose sorted cells compare lowest.
+public final class Symmetry {
+
+    public static final int COUNT = 48;
+    public static final int ROTATIONS = 24;
+    public static final int IDENTITY = 0;
+
+    // Source axis and sign of each result axis, (x, y, z) -> (SIGNS[0] * v[AXES[0]], ...)
+    private static final int[][] AXES = new int[COUNT][];
+    private static final int[][] SIGNS = new int[COUNT][];
+    private static final int[] INVERSES = new int[COUNT];
+    private static final int[][] DIRECTIONS = new int[COUNT][Board.DIRECTION_COUNT];
+
+    static {
+        // The first three permutations are even, so keep handedness when an even number of axes are flipped
+        int[][] permutations = {{0, 1, 2}, {1, 2, 0}, {2, 0, 1}, {0, 2, 1}, {2, 1, 0}, {1, 0, 2}};
+        int rotations = 0;
+        int reflections = ROTATIONS;
+        for (int i = 0; i < permutations.length; i++) {
+            int[] p = permutations[i];
+            boolean even = i < 3;
+            for (int s = 0; s < 8; s++) {
+                int[] signs = {(s & 1) == 0 ? 1 : -1, (s & 2) == 0 ? 1 : -1, (s & 4) == 0 ? 1 : -1};
+                boolean positive = (signs[0] * signs[1] * signs[2] > 0) == even;
+                int index = positive ? rotations++ : reflections++;
+                AXES[index] = p;
+                SIGNS[index] = signs;
+            }
+        }
+        for (int i = 0; i < COUNT; i++) {
+            for (int j = 0; j < COUNT; j++) {
+                if (apply(j, apply(i, 1, 2, 3)) == PerspectiveUtils.packCell(1, 2, 3)) {
+                    INVERSES[i] = j;
+                }
+            }
+            for (int d = 0; d < Board.DIRECTION_COUNT; d++) {
+                int[] v = Board.DIRECTIONS[d];
+                long c = apply(i, v[0], v[1], v[2]);
+                for (int e = 0; e < Board.DIRECTION_COUNT; e++) {
+                    int[] w = Board.DIRECTIONS[e];
+                    if (c == PerspectiveUtils.packCell(w[0], w[1], w[2])) {
+                        DIRECTIONS[i][d] = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private Symmetry() {}
+
+    public static boolean isRotation(int symmetry) {
+        return symmetry < ROTATIONS;
+    }
+
+    public static int inverse(int symmetry) {
+        return INVERSES[symmetry];
+    }
+
+    public static long apply(int symmetry, int x, int y, int z) {
+        int[] a = AXES[symmetry];
+        int[] s = SIGNS[symmetry];
+        int[] v = {x, y, z};
+        return PerspectiveUtils.packCell(s[0] * v[a[0]], s[1] * v[a[1]], s[2] * v[a[2]]);
+    }
+
+    public static long apply(int symmetry, long cell) {
+        return apply(symmetry, PerspectiveUtils.unpackX(cell), PerspectiveUtils.unpackY(cell), PerspectiveUtils.unpackZ(cell));
+    }
+
+    // Applies the symmetry to count cells from the offset, writing them to out from outOffset, without allocating
+    // per cell. The arrays may be the same.
+    public static void apply(int symmetry, long[] cells, int offset, int count, long[] out, int outOffset) {
+        int[] a = AXES[symmetry];
+        int[] s = SIGNS[symmetry];
+        final int a0 = a[0], a1 = a[1], a2 = a[2];
+        final int s0 = s[0], s1 = s[1], s2 = s[2];
+        int[] v = new int[3];
+        for (int i = 0; i < count; i++) {
+            long c = cells[offset + i];
+            v[0] = PerspectiveUtils.unpackX(c);
+            v[1] = PerspectiveUtils.unpackY(c);
+            v[2] = PerspectiveUtils.unpackZ(c);
+            out[outOffset + i] = PerspectiveUtils.packCell(s0 * v[a0], s1 * v[a1], s2 * v[a2]);
+        }
+    }
+
+    // Index into Board.DIRECTIONS that the direction maps to
+    public static int applyDirection(int symmetry, int direction) {
+        return DIRECTIONS[symmetry][direction];
+    }
+
+    public static Location apply(int symmetry, Location location) {
+        long c = apply(symmetry, location.getX(), location.getY(), location.getZ());
+        return Location.newBuilder()
+            .setX(PerspectiveUtils.unpackX(c))
+            .setY(PerspectiveUtils.unpackY(c))
+            .setZ(PerspectiveUtils.unpackZ(c))
+            .build();
+    }
+
+    public static Board apply(int symmetry, Board board) {
+        Board result = new Board(board.size);
+        for (long c : board.blocks.cells()) {
+            long t = apply(symmetry, c);
+            result.blocks.add(PerspectiveUtils.unpackX(t), PerspectiveUtils.unpackY(t), PerspectiveUtils.unpackZ(t));
+        }
+        for (long c : board.goals.cells()) {
+            long t = apply(symmetry, c);
+            result.goals.add(PerspectiveUtils.unpackX(t), PerspectiveUtils.unpackY(t), PerspectiveUtils.unpackZ(t));
+        }
+        for (Entry<Long, Long> e : board.portals.entrySet()) {
+            result.portals.put(apply(symmetry, e.getKey()), apply(symmetry, e.getValue()));
+        }
+        for (int i = 0; i < board.getSphereCount(); i++) {
+            result.addSphere(apply(symmetry, board.getSphere(i)));
+        }
+        return result;
+    }
+
+    public static Puzzle apply(int symmetry, Puzzle puzzle) {
+        Puzzle.Builder pb = puzzle.toBuilder()
+            .clearBlock()
+            .clearGoal()
+            .clearPortal()
+            .clearSphere()
+            .clearDialog()
+            .clearScenery();
+        for (Block b : puzzle.getBlockList()) {
+            pb.addBlock(b.toBuilder().setLocation(apply(symmetry, b.getLocation())));
+        }
+        for (Goal g : puzzle.getGoalList()) {
+            pb.addGoal(g.toBuilder().setLocation(apply(symmetry, g.getLocation())));
+        }
+        for (Portal p : puzzle.getPortalList()) {
+            pb.addPortal(p.toBuilder().setLocation(apply(symmetry, p.getLocation())).setLink(apply(symmetry, p.getLink())));
+        }
+        for (Sphere s : puzzle.getSphereList()) {
+            pb.addSphere(s.toBuilder().setLocation(apply(symmetry, s.getLocation())));
+        }
+        for (Dialog d : puzzle.getDialogList()) {
+            pb.addDialog(d.toBuilder().setLocation(apply(symmetry, d.getLocation())));
+        }
+        for (Scenery s : puzzle.getSceneryList()) {
+            pb.addScenery(s.toBuilder().setLocation(apply(symmetry, s.getLocation())));
+        }
+        return pb.build();
+    }
+
+    // Cells of the board under the symmetry; the counts and sorted cells of blocks, goals, portals
+    // (as ordered pairs of the portal and its link) and spheres, one after the other
+    public static long[] getKey(int symmetry, long[] blocks, long[] goals, long[] portals, long[] spheres) {
+        long[] key = new long[4 + blocks.length + goals.length + portals.length + spheres.length];
+        int n = 0;
+        n = appendCells(key, n, symmetry, blocks);
+        n = appendCells(key, n, symmetry, goals);
+        key[n++] = portals.length;
+        long[] pairs = new long[portals.length];
+        apply(symmetry, portals, 0, portals.length, pairs, 0);
+        // Sort the pairs by the portal, keeping each link with its portal
+        Integer[] order = new Integer[portals.length / 2];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] p = pairs;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(p[a * 2], p[b * 2]);
+                return c != 0 ? c : Long.compare(p[a * 2 + 1], p[b * 2 + 1]);
+            }
+        });
+        for (Integer i : order) {
+            key[n++] = pairs[i * 2];
+            key[n++] = pairs[i * 2 + 1];
+        }
+        appendCells(key, n, symmetry, spheres);
+        return key;
+    }
+
+    private static int appendCells(long[] key, int n, int symmetry, long[] cells) {
+        key[n++] = cells.length;
+        apply(symmetry, cells, 0, cells.length, key, n);
+        Arrays.sort(key, n, n + cells.length);
+        return n + cells.length;
+    }
+
+    private static int compare(long[] a, long[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return Long.compare(a[i], b[i]);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    // Finds the symmetry giving the lowest key, which stays the same for every symmetric variant of the board
+    private static int canonical(long[] blocks, long[] goals, long[] portals, long[] spheres, boolean reflections, long[][] result) {
+        int best = IDENTITY;
+        long[] min = getKey(IDENTITY, blocks, goals, portals, spheres);
+        int count = reflections ? COUNT : ROTATIONS;
+        for (int s = 1; s < count; s++) {
+            long[] key = getKey(s, blocks, goals, portals, spheres);
+            if (compare(key, min) < 0) {
+                min = key;
+                best = s;
+            }
+        }
+        if (result != null) {
+            result[0] = min;
+        }
+        return best;
+    }
+
+    public static int getCanonicalSymmetry(Board board, boolean reflections) {
+        return canonical(board.blocks.cells(), board.goals.cells(), portalCells(board), sphereCells(board), reflections, null);
+    }
+
+    public static long[] getCanonicalKey(Board board) {
+        long[][] result = new long[1][];
+        canonical(board.blocks.cells(), board.goals.cells(), portalCells(board), sphereCells(board), true, result);
+        return result[0];
+    }
+
+    public static int getCanonicalSymmetry(Puzzle puzzle, boolean reflections) {
+        return canonical(blockCells(puzzle), goalCells(puzzle), portalCells(puzzle), sphereCells(puzzle), reflections, null);
+    }
+
+    public static long[] getCanonicalKey(Puzzle puzzle) {
+        long[][] result = new long[1][];
+        canonical(blockCells(puzzle), goalCells(puzzle), portalCells(puzzle), sphereCells(puzzle), true, result);
+        return result[0];
+    }
+
+    // The puzzle mapped to its canonical orientation, appearances and names are unchanged
+    public static Puzzle canonicalize(Puzzle puzzle) {
+        int s = getCanonicalSymmetry(puzzle, true);
+        if (s == IDENTITY) {
+            return puzzle;
+        }
+        return apply(s, puzzle);
+    }
+
+    // Hash of the canonical cells, equal for every rotation and mirror image of the puzzle whatever it looks like
+    public static String getCanonicalHash(Puzzle puzzle) throws NoSuchAlgorithmException {
+        long[] key = getCanonicalKey(puzzle);
+        ByteBuffer buffer = ByteBuffer.allocate(key.length * 8);
+        for (long k : key) {
+            buffer.putLong(k);
+        }
+        return PerspectiveUtils.getHash(buffer.array());
+    }
+
+    // Keeps the first of each set of symmetric puzzles, in the given order
+    public static List<Puzzle> deduplicate(Collection<Puzzle> puzzles) {
+        Set<Solver.State> seen = new HashSet<>();
+        List<Puzzle> unique = new ArrayList<>();
+        for (Puzzle p : puzzles) {
+            if (seen.add(new Solver.State(getCanonicalKey(p)))) {
+                unique.add(p);
+            }
+        }
+        return unique;
+    }
+
+    private static long[] sphereCells(Board board) {
+        long[] cells = new long[board.getSphereCount()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = board.getSphere(i);
+        }
+        return cells;
+    }
+
+    private static long[] portalCells(Board board) {
+        long[] cells = new long[board.portals.size() * 2];
+        int n = 0;
+        for (Entry<Long, Long> e : board.portals.entrySet()) {
+            cells[n++] = e.getKey();
+            cells[n++] = e.getValue();
+        }
+        return cells;
+    }
+
+    private static long pack(Location l) {
+        return PerspectiveUtils.packCell(l.getX(), l.getY(), l.getZ());
+    }
+
+    private static long[] blockCells(Puzzle puzzle) {
+        long[] cells = new long[puzzle.getBlockCount()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = pack(puzzle.getBlock(i).getLocation());
+        }
+        return cells;
+    }
+
+    private static long[] goalCells(Puzzle puzzle) {
+        long[] cells = new long[puzzle.getGoalCount()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = pack(puzzle.getGoal(i).getLocation());
+        }
+        return cells;
+    }
+
+    private static long[] portalCells(Puzzle puzzle) {
+        long[] cells = new long[puzzle.getPortalCount() * 2];
+        for (int i = 0; i < puzzle.getPortalCount(); i++) {
+            Portal p = puzzle.getPortal(i);
+            cells[i * 2] = pack(p.getLocation());
+            cells[i * 2 + 1] = pack(p.getLink());
+        }
+        return cells;
+    }
+
+    private static long[] sphereCells(Puzzle puzzle) {
+        long[] cells = new long[puzzle.getSphereCount()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = pack(puzzle.getSphere(i).getLocation());
+        }
+        return cells;
+    }
+}
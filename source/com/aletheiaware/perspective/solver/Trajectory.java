@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.solver;
+
+import com.aletheiaware.perspective.utils.PerspectiveUtils;
+
+import java.util.Arrays;
+
+// Where each sphere would go if dropped along a direction, as the start and end of each straight run of its path.
+// A run into a portal ends at the portal and the next starts at the linked portal. The last run ends in the cell the
+// sphere comes to rest in, or the first cell off the board if it falls out.
+public class Trajectory {
+
+    public final int direction;// Index into Board.DIRECTIONS
+    public final int sphereCount;
+    public final float[] points;// x, y, z of each point
+    public final int[] offsets;// Index of each sphere's first point, followed by the total number of points
+    public final long[] results;// Cell each sphere comes to rest in, or Board.OUT
+
+    private Trajectory(int direction, int sphereCount, float[] points, int[] offsets, long[] results) {
+        this.direction = direction;
+        this.sphereCount = sphereCount;
+        this.points = points;
+        this.offsets = offsets;
+        this.results = results;
+    }
+
+    public int getPointCount() {
+        return offsets[sphereCount];
+    }
+
+    // The path is used as scratch space
+    public static Trajectory of(Board board, long[] cells, int direction, Board.Path path) {
+        int[] d = Board.DIRECTIONS[direction];
+        float[] points = new float[cells.length * 6];// One run each, unless they pass through portals
+        int[] offsets = new int[cells.length + 1];
+        long[] results = new long[cells.length];
+        int count = 0;
+        for (int i = 0; i < cells.length; i++) {
+            offsets[i] = count;
+            path.clear();
+            long result = board.drop(cells[i], direction, path);
+            results[i] = result;
+            long[] runs = path.toArray();
+            int n = runs.length / 2;
+            if ((count + n * 2) * 3 > points.length) {
+                points = Arrays.copyOf(points, Math.max(points.length * 2, (count + n * 2) * 3));
+            }
+            for (int r = 0; r < n; r++) {
+                long start = runs[r * 2];
+                int length = (int) runs[r * 2 + 1];
+                count = put(points, count, start);
+                if (r == n - 1 && result != Board.OUT) {
+                    count = put(points, count, result);
+                } else {
+                    count = put(points, count, PerspectiveUtils.packCell(
+                            PerspectiveUtils.unpackX(start) + d[0] * length,
+                            PerspectiveUtils.unpackY(start) + d[1] * length,
+                            PerspectiveUtils.unpackZ(start) + d[2] * length));
+                }
+            }
+        }
+        offsets[cells.length] = count;
+        return new Trajectory(direction, cells.length, Arrays.copyOf(points, count * 3), offsets, results);
+    }
+
+    private static int put(float[] points, int count, long cell) {
+        points[count * 3] = PerspectiveUtils.unpackX(cell);
+        points[count * 3 + 1] = PerspectiveUtils.unpackY(cell);
+        points[count * 3 + 2] = PerspectiveUtils.unpackZ(cell);
+        return count + 1;
+    }
+}
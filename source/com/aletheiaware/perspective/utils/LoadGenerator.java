@@ -0,0 +1,475 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import com.aletheiaware.joy.scene.Scene;
+import com.aletheiaware.perspective.Perspective;
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.World;
+import com.aletheiaware.perspective.PreparedPuzzle;
+import com.aletheiaware.perspective.solver.Generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless load test; runs many simulated players, each with their own Perspective, stub Scene and Callback, playing
+// scripted or random moves and ticking their own animations. Players run on virtual threads where the runtime has
+// them, otherwise each frame of each player is a task on a scheduled pool, so every player is in play at once however
+// few threads there are. Reports operations per second, latency percentiles, allocation rate and heap.
+//
+// java com.aletheiaware.perspective.utils.LoadGenerator --players=1000 --seconds=30 [--world=file --puzzle=1]
+//     [--script=rotate,rotateToAxis,drop] [--frame=16] [--threads=n] [--platform] [--verbose]
+public class LoadGenerator {
+
+    public static final String ROTATE = "rotate";
+    public static final String ROTATE_TO_AXIS = "rotateToAxis";
+    public static final String TURN = "turn";
+    public static final String DROP = "drop";
+
+    public static class Options {
+        public int players = 100;
+        public int seconds = 10;
+        public int size = 5;
+        public long frameMillis = 16;// Time between animation ticks
+        public int threads = Runtime.getRuntime().availableProcessors();// Scheduled pool size without virtual threads
+        public boolean virtual = true;
+        public boolean quiet = true;// Discard the game's logging while players run
+        public long seed = 0;
+        public String[] script;// Null to play at random
+        public File world;// Null to generate a puzzle
+        public int puzzle = 1;
+    }
+
+    public static class Report {
+        public int players;
+        public boolean virtual;
+        public long operations;
+        public long games;
+        public double seconds;
+        public double operationsPerSecond;
+        public long[] percentiles;// Nanoseconds at P50, P90, P99, P99.9 and the maximum
+        public long allocatedBytes;// -1 if the runtime cannot measure it
+        public double allocationRate;// Bytes per second
+        public long heapPerSession;// Bytes
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Players: %d on %s threads%n", players, virtual ? "virtual" : "platform"));
+            sb.append(String.format("Operations: %d in %.1fs, %.0f ops/s, %d games%n", operations, seconds, operationsPerSecond, games));
+            sb.append(String.format("Latency: p50 %.1fus, p90 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus%n",
+                    percentiles[0] / 1000.0, percentiles[1] / 1000.0, percentiles[2] / 1000.0, percentiles[3] / 1000.0, percentiles[4] / 1000.0));
+            if (allocatedBytes < 0) {
+                sb.append(String.format("Allocation: unavailable%n"));
+            } else {
+                sb.append(String.format("Allocation: %d MB, %.1f MB/s%n", allocatedBytes >> 20, allocationRate / (1 << 20)));
+            }
+            sb.append(String.format("Heap: %d KB per session%n", heapPerSession >> 10));
+            return sb.toString();
+        }
+    }
+
+    private static final class Player implements Perspective.Callback {
+        final Perspective perspective;
+        final PreparedPuzzle prepared;
+        final Random random;
+        long[] latencies = new long[1024];
+        int count;
+        int step;// Position in the script
+        long games;
+        volatile boolean over;
+
+        Player(PreparedPuzzle prepared, long seed) {
+            this.perspective = new Perspective(this, new Scene(), prepared.size);
+            this.prepared = prepared;
+            this.random = new Random(seed);
+            start();
+        }
+
+        // Imports copy what they take, so every player shares one prepared puzzle
+        void start() {
+            perspective.importPuzzle(prepared);
+        }
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        @Override
+        public void onDropComplete() {}
+
+        @Override
+        public void onRotateComplete() {}
+
+        @Override
+        public void onTurnComplete() {}
+
+        @Override
+        public void onGameLost() {
+            over = true;
+        }
+
+        @Override
+        public void onGameWon() {
+            over = true;
+        }
+
+        @Override
+        public void addSceneGraphNode(String shader, String name, String type, String mesh, String colour, String texture, String material) {}
+    }
+
+    private final Options options;
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        final PreparedPuzzle prepared = PreparedPuzzle.prepare(loadPuzzle(), options.size);
+        PrintStream out = System.out;
+        if (options.quiet) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {}
+
+                @Override
+                public void write(byte[] b, int off, int len) {}
+            }));
+        }
+        try {
+            long heapBefore = usedHeap();
+            final Player[] players = new Player[options.players];
+            for (int i = 0; i < players.length; i++) {
+                players[i] = new Player(prepared, options.seed + i);
+            }
+            long heapAfter = usedHeap();
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.seconds);
+            final AtomicLong failures = new AtomicLong();
+            ThreadFactory factory = options.virtual ? getVirtualThreadFactory() : null;
+            Report report = new Report();
+            report.players = players.length;
+            report.virtual = factory != null;
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            if (factory == null) {
+                final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(options.threads);
+                final CountDownLatch done = new CountDownLatch(players.length);
+                for (final Player p : players) {
+                    scheduler.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (System.nanoTime() >= deadline) {
+                                done.countDown();
+                                return;
+                            }
+                            try {
+                                frame(p);
+                            } catch (RuntimeException e) {
+                                failures.incrementAndGet();
+                                e.printStackTrace();
+                                done.countDown();
+                                return;
+                            }
+                            scheduler.schedule(this, options.frameMillis, TimeUnit.MILLISECONDS);
+                        }
+                    });
+                }
+                done.await();
+                scheduler.shutdown();
+            } else {
+                List<Thread> threads = new ArrayList<>();
+                for (final Player p : players) {
+                    Thread t = factory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                play(p, deadline);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } catch (RuntimeException e) {
+                                failures.incrementAndGet();
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                    threads.add(t);
+                    t.start();
+                }
+                for (Thread t : threads) {
+                    t.join();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = getAllocatedBytes();
+
+            int total = 0;
+            for (Player p : players) {
+                total += p.count;
+                report.games += p.games;
+            }
+            long[] all = new long[total];
+            int n = 0;
+            for (Player p : players) {
+                System.arraycopy(p.latencies, 0, all, n, p.count);
+                n += p.count;
+            }
+            Arrays.sort(all);
+            report.operations = total;
+            report.seconds = elapsed / 1e9;
+            report.operationsPerSecond = total / report.seconds;
+            report.percentiles = new long[] {
+                    percentile(all, 0.5),
+                    percentile(all, 0.9),
+                    percentile(all, 0.99),
+                    percentile(all, 0.999),
+                    total == 0 ? 0 : all[total - 1],
+            };
+            report.allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+            report.allocationRate = report.allocatedBytes / report.seconds;
+            report.heapPerSession = players.length == 0 ? 0 : Math.max(0, heapAfter - heapBefore) / players.length;
+            if (failures.get() > 0) {
+                System.err.println(failures.get() + " players failed");
+            }
+            return report;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private Puzzle loadPuzzle() throws IOException {
+        World world;
+        if (options.world != null) {
+            world = PerspectiveUtils.readWorld(options.world);
+        } else {
+            Generator.Options o = new Generator.Options();
+            o.size = options.size;
+            o.count = 1;
+            o.seed = options.seed;
+            world = new Generator(o).generateWorld("load");
+        }
+        Puzzle puzzle = PerspectiveUtils.getPuzzle(world, options.puzzle);
+        if (puzzle == null) {
+            throw new IOException("No puzzle " + options.puzzle);
+        }
+        return puzzle;
+    }
+
+    // Plays on its own thread until the deadline, sleeping between frames
+    private void play(Player p, long deadline) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            next(p);
+            settle(p, deadline);
+        }
+    }
+
+    // One frame of a player on the scheduled pool; performs the next operation once the last has settled, then
+    // ticks its animations as a renderer would
+    private void frame(Player p) {
+        Perspective perspective = p.perspective;
+        if (perspective.animator.isEmpty()) {
+            next(p);
+        }
+        if (!perspective.animator.isEmpty()) {
+            perspective.animator.tick();
+            perspective.updateFrame();
+        }
+    }
+
+    // Starts again if the last game is over, as a player moving on to the next puzzle would, then performs the next
+    // scripted or random operation
+    private void next(Player p) {
+        if (p.over || p.perspective.isGameOver()) {
+            p.over = false;
+            p.games++;
+            long s = System.nanoTime();
+            p.start();
+            p.record(System.nanoTime() - s);
+            p.step = 0;
+        }
+        String operation = options.script == null ? randomOperation(p.random) : options.script[p.step++ % options.script.length];
+        long start = System.nanoTime();
+        perform(p, operation);
+        p.record(System.nanoTime() - start);
+    }
+
+    // Mostly small drags, as a finger produces, with a settle and a drop every few
+    private static String randomOperation(Random random) {
+        int r = random.nextInt(10);
+        if (r < 6) {
+            return ROTATE;
+        } else if (r < 7) {
+            return TURN;
+        } else if (r < 8) {
+            return ROTATE_TO_AXIS;
+        }
+        return DROP;
+    }
+
+    private static void perform(Player p, String operation) {
+        Perspective perspective = p.perspective;
+        switch (operation) {
+            case ROTATE:
+                perspective.rotate((p.random.nextFloat() - 0.5f) * 0.2f, (p.random.nextFloat() - 0.5f) * 0.2f);
+                break;
+            case TURN:
+                int axis = p.random.nextInt(3);
+                perspective.turn(axis == 0 ? 1 : 0, axis == 1 ? 1 : 0, axis == 2 ? 1 : 0);
+                break;
+            case ROTATE_TO_AXIS:
+                perspective.rotateToAxis();
+                break;
+            case DROP:
+                // Drops only follow a settled rotation, as in the game
+                perspective.rotateToAxis();
+                perspective.drop();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+
+    // Ticks the player's animations a frame at a time until they finish, as a renderer would
+    private void settle(Player p, long deadline) throws InterruptedException {
+        Perspective perspective = p.perspective;
+        while (!perspective.animator.isEmpty() && System.nanoTime() < deadline) {
+            perspective.animator.tick();
+            perspective.updateFrame();
+            if (options.frameMillis > 0) {
+                Thread.sleep(options.frameMillis);
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Thread.ofVirtual().factory(), found reflectively so the tool still builds and runs on runtimes without it
+    static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Bytes allocated by every thread so far, or -1 if the runtime cannot tell
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (!c.isInstance(bean)) {
+                return -1;
+            }
+            try {
+                // Includes virtual threads, which are not listed by id
+                return (Long) c.getMethod("getTotalThreadAllocatedBytes").invoke(bean);
+            } catch (NoSuchMethodException e) {
+                long[] ids = bean.getAllThreadIds();
+                long[] bytes = (long[]) c.getMethod("getThreadAllocatedBytes", long[].class).invoke(bean, (Object) ids);
+                long total = 0;
+                for (long b : bytes) {
+                    if (b > 0) {
+                        total += b;
+                    }
+                }
+                return total;
+            }
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        for (String a : args) {
+            String[] kv = a.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--players":
+                    options.players = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    options.seconds = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    options.size = Integer.parseInt(value);
+                    break;
+                case "--frame":
+                    options.frameMillis = Long.parseLong(value);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--platform":
+                    options.virtual = false;
+                    break;
+                case "--verbose":
+                    options.quiet = false;
+                    break;
+                case "--seed":
+                    options.seed = Long.parseLong(value);
+                    break;
+                case "--script":
+                    options.script = value.split(",");
+                    break;
+                case "--world":
+                    options.world = new File(value);
+                    break;
+                case "--puzzle":
+                    options.puzzle = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + a);
+                    System.exit(1);
+            }
+        }
+        System.out.println(new LoadGenerator(options).run());
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import com.aletheiaware.joy.scene.Vector;
+import com.aletheiaware.perspective.PerspectiveProto.Location;
+import com.aletheiaware.perspective.PerspectiveProto.Move;
+import com.aletheiaware.perspective.PerspectiveProto.Solution;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Records the moves of a game in primitive arrays, the index of the sphere's name and its packed cell, so nothing is
+// allocated per move. Only converted to a Solution when one is asked for.
+public class MoveLog {
+
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> keyIndices = new HashMap<>();
+    private int[] moveKeys = new int[32];
+    private long[] moveCells = new long[32];// See PerspectiveUtils.packCell
+    private int count;
+    private int limit;// Moves held, those past count were truncated and can be restored until another is added
+    private int score;
+
+    public void clear() {
+        keys.clear();
+        keyIndices.clear();
+        count = 0;
+        limit = 0;
+        score = 0;
+    }
+
+    // Replaces the moves and score with a copy of those in the other log
+    public void set(MoveLog other) {
+        keys.clear();
+        keys.addAll(other.keys);
+        keyIndices.clear();
+        keyIndices.putAll(other.keyIndices);
+        if (moveKeys.length < other.limit) {
+            moveKeys = new int[other.moveKeys.length];
+            moveCells = new long[other.moveCells.length];
+        }
+        System.arraycopy(other.moveKeys, 0, moveKeys, 0, other.limit);
+        System.arraycopy(other.moveCells, 0, moveCells, 0, other.limit);
+        count = other.count;
+        limit = other.limit;
+        score = other.score;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public void setScore(int score) {
+        this.score = score;
+    }
+
+    public void incrementScore() {
+        score++;
+    }
+
+    public int getMoveCount() {
+        return count;
+    }
+
+    public String getKey(int move) {
+        return keys.get(moveKeys[move]);
+    }
+
+    public int getX(int move) {
+        return PerspectiveUtils.unpackX(moveCells[move]);
+    }
+
+    public int getY(int move) {
+        return PerspectiveUtils.unpackY(moveCells[move]);
+    }
+
+    public int getZ(int move) {
+        return PerspectiveUtils.unpackZ(moveCells[move]);
+    }
+
+    public void addMove(String key, Vector v) {
+        addMove(key, (int) v.getX(), (int) v.getY(), (int) v.getZ());
+    }
+
+    public void addMove(String key, int x, int y, int z) {
+        Integer index = keyIndices.get(key);
+        if (index == null) {
+            index = keys.size();
+            keys.add(key);
+            keyIndices.put(key, index);
+        }
+        if (count == moveKeys.length) {
+            moveKeys = Arrays.copyOf(moveKeys, count * 2);
+            moveCells = Arrays.copyOf(moveCells, count * 2);
+        }
+        moveKeys[count] = index;
+        // 21 bits an axis, enough for anywhere a sphere can fall to whatever the size of the puzzle
+        moveCells[count] = PerspectiveUtils.packCell(x, y, z);
+        count++;
+        limit = count;
+    }
+
+    // Drops the moves after the given number, eg when a move is undone
+    public void truncate(int moveCount) {
+        count = Math.min(count, moveCount);
+    }
+
+    // Moves to the given number of moves, either dropping moves or bringing back those dropped by truncate, eg when
+    // a move is redone. Returns false if there are not that many moves held
+    public boolean restore(int moveCount) {
+        if (moveCount < 0 || moveCount > limit) {
+            return false;
+        }
+        count = moveCount;
+        return true;
+    }
+
+    public Solution toSolution() {
+        Solution.Builder sb = Solution.newBuilder().setScore(score);
+        for (int i = 0; i < getMoveCount(); i++) {
+            sb.addMove(Move.newBuilder()
+                    .setKey(getKey(i))
+                    .setValue(Location.newBuilder()
+                        .setX(getX(i))
+                        .setY(getY(i))
+                        .setZ(getZ(i))));
+        }
+        return sb.build();
+    }
+
+    public static MoveLog fromSolution(Solution solution) {
+        MoveLog log = new MoveLog();
+        log.score = solution.getScore();
+        for (Move m : solution.getMoveList()) {
+            Location l = m.getValue();
+            log.addMove(m.getKey(), l.getX(), l.getY(), l.getZ());
+        }
+        return log;
+    }
+
+    // Compact form prefixed by its length as a varint, so it can be read back from a stream holding more after it
+    public void writeCompact(OutputStream out) throws IOException {
+        byte[] data = toCompact();
+        CodedOutputStream cos = CodedOutputStream.newInstance(out);
+        cos.writeUInt32NoTag(data.length);
+        cos.writeRawBytes(data);
+        cos.flush();
+    }
+
+    // Compact form; the score, the sphere names, then each move as the name's index followed by the
+    // zigzag varint change from that sphere's previous cell. Usually three or four bytes a move.
+    private void writeCompact(CodedOutputStream cos) throws IOException {
+        cos.writeUInt32NoTag(score);
+        cos.writeUInt32NoTag(keys.size());
+        for (String k : keys) {
+            cos.writeStringNoTag(k);
+        }
+        int moveCount = getMoveCount();
+        cos.writeUInt32NoTag(moveCount);
+        int[] previous = new int[keys.size() * 3];
+        for (int i = 0; i < moveCount; i++) {
+            int k = moveKeys[i];
+            int x = getX(i);
+            int y = getY(i);
+            int z = getZ(i);
+            cos.writeUInt32NoTag(k);
+            cos.writeSInt32NoTag(x - previous[k * 3]);
+            cos.writeSInt32NoTag(y - previous[k * 3 + 1]);
+            cos.writeSInt32NoTag(z - previous[k * 3 + 2]);
+            previous[k * 3] = x;
+            previous[k * 3 + 1] = y;
+            previous[k * 3 + 2] = z;
+        }
+        cos.flush();
+    }
+
+    // Compact form without the length prefix
+    public byte[] toCompact() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + count * 4);
+        try {
+            writeCompact(CodedOutputStream.newInstance(out));
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    // Reads the length prefixed form written by writeCompact, and nothing after it
+    public static MoveLog readCompact(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Invalid length: " + length);
+        }
+        byte[] data = new byte[length];
+        new DataInputStream(in).readFully(data);
+        return readCompact(data);
+    }
+
+    public static MoveLog readCompact(byte[] data) throws IOException {
+        return readCompact(CodedInputStream.newInstance(data), data.length);
+    }
+
+    // Every name and move takes at least one byte, so neither can outnumber the bytes
+    private static MoveLog readCompact(CodedInputStream cis, int length) throws IOException {
+        MoveLog log = new MoveLog();
+        log.score = cis.readUInt32();
+        int keyCount = cis.readUInt32();
+        if (keyCount < 0 || keyCount > length) {
+            throw new IOException("Invalid key count: " + keyCount);
+        }
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = cis.readString();
+        }
+        int moveCount = cis.readUInt32();
+        if (moveCount < 0 || moveCount > length) {
+            throw new IOException("Invalid move count: " + moveCount);
+        }
+        int[] previous = new int[keyCount * 3];
+        for (int i = 0; i < moveCount; i++) {
+            int k = cis.readUInt32();
+            if (k < 0 || k >= keyCount) {
+                throw new IOException("Invalid key index: " + k);
+            }
+            previous[k * 3] += cis.readSInt32();
+            previous[k * 3 + 1] += cis.readSInt32();
+            previous[k * 3 + 2] += cis.readSInt32();
+            log.addMove(keys[k], previous[k * 3], previous[k * 3 + 1], previous[k * 3 + 2]);
+        }
+        return log;
+    }
+}
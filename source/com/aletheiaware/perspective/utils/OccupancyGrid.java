@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import com.aletheiaware.joy.scene.Vector;
+
+import java.util.Arrays;
+
+// Sparse set of occupied cells stored as 8x8x8 bitset chunks in a primitive long-keyed hash map,
+// memory stays proportional to the number of occupied chunks however large the puzzle
+public class OccupancyGrid {
+
+    public static final int CHUNK = 8;
+    private static final int SHIFT = 3;
+    private static final int MASK = CHUNK - 1;
+    private static final int WORDS = CHUNK * CHUNK * CHUNK / 64;
+
+    private long[] keys;
+    private long[][] chunks;// Null marks a free slot
+    private int[] counts;
+    private int chunkCount;
+    private int size;
+
+    public OccupancyGrid() {
+        this(16);
+    }
+
+    public OccupancyGrid(int capacity) {
+        int c = Integer.highestOneBit(Math.max(4, capacity * 2 - 1));
+        keys = new long[c];
+        chunks = new long[c][];
+        counts = new int[c];
+    }
+
+    public OccupancyGrid(OccupancyGrid other) {
+        keys = other.keys.clone();
+        chunks = new long[other.chunks.length][];
+        for (int i = 0; i < chunks.length; i++) {
+            if (other.chunks[i] != null) {
+                chunks[i] = other.chunks[i].clone();
+            }
+        }
+        counts = other.counts.clone();
+        chunkCount = other.chunkCount;
+        size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public void clear() {
+        Arrays.fill(chunks, null);
+        Arrays.fill(counts, 0);
+        chunkCount = 0;
+        size = 0;
+    }
+
+    // Packed coordinates of every occupied cell, in no particular order
+    public long[] cells() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            long[] words = chunks[i];
+            if (words == null) {
+                continue;
+            }
+            long key = keys[i];
+            int cx = PerspectiveUtils.unpackX(key) << SHIFT;
+            int cy = PerspectiveUtils.unpackY(key) << SHIFT;
+            int cz = PerspectiveUtils.unpackZ(key) << SHIFT;
+            for (int w = 0; w < WORDS; w++) {
+                long bits = words[w];
+                while (bits != 0) {
+                    int bit = (w << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    result[n++] = PerspectiveUtils.packCell(cx | (bit & MASK), cy | ((bit >> SHIFT) & MASK), cz | (bit >> (SHIFT * 2)));
+                }
+            }
+        }
+        return result;
+    }
+
+    public boolean add(Vector v) {
+        return add(Math.round(v.getX()), Math.round(v.getY()), Math.round(v.getZ()));
+    }
+
+    public boolean remove(Vector v) {
+        return remove(Math.round(v.getX()), Math.round(v.getY()), Math.round(v.getZ()));
+    }
+
+    // Only cell centers can be occupied
+    public boolean contains(Vector v) {
+        float x = v.getX();
+        float y = v.getY();
+        float z = v.getZ();
+        int ix = Math.round(x);
+        int iy = Math.round(y);
+        int iz = Math.round(z);
+        return ix == x && iy == y && iz == z && contains(ix, iy, iz);
+    }
+
+    public boolean add(int x, int y, int z) {
+        long key = chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT);
+        int slot = find(key);
+        if (chunks[slot] == null) {
+            if ((chunkCount + 1) * 4 > keys.length * 3) {
+                rehash(keys.length * 2);
+                slot = find(key);
+            }
+            keys[slot] = key;
+            chunks[slot] = new long[WORDS];
+            counts[slot] = 0;
+            chunkCount++;
+        }
+        int bit = bitIndex(x, y, z);
+        long[] words = chunks[slot];
+        long mask = 1L << (bit & 63);
+        if ((words[bit >> 6] & mask) != 0) {
+            return false;
+        }
+        words[bit >> 6] |= mask;
+        counts[slot]++;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int x, int y, int z) {
+        int slot = find(chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT));
+        long[] words = chunks[slot];
+        if (words == null) {
+            return false;
+        }
+        int bit = bitIndex(x, y, z);
+        long mask = 1L << (bit & 63);
+        if ((words[bit >> 6] & mask) == 0) {
+            return false;
+        }
+        words[bit >> 6] &= ~mask;
+        size--;
+        if (--counts[slot] == 0) {
+            delete(slot);
+        }
+        return true;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        long[] words = chunks[find(chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT))];
+        if (words == null) {
+            return false;
+        }
+        int bit = bitIndex(x, y, z);
+        return (words[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    // True if no cell in the chunk containing the given cell is occupied
+    public boolean isChunkEmpty(int x, int y, int z) {
+        return chunks[find(chunkKey(x >> SHIFT, y >> SHIFT, z >> SHIFT))] == null;
+    }
+
+    // Returns the number of steps along the unit axis (dx, dy, dz) from the given cell to the first occupied cell,
+    // or -1 if there is none within limit steps. Empty chunks are crossed in a single step.
+    public int march(int x, int y, int z, int dx, int dy, int dz, int limit) {
+        int steps = 0;
+        while (steps < limit) {
+            int nx = x + dx;
+            int ny = y + dy;
+            int nz = z + dz;
+            if (isChunkEmpty(nx, ny, nz)) {
+                // Jump to the last cell of the empty chunk along the axis
+                int skip = Math.min(limit - steps, distanceToChunkEdge(nx, dx) + distanceToChunkEdge(ny, dy) + distanceToChunkEdge(nz, dz) + 1);
+                x += dx * skip;
+                y += dy * skip;
+                z += dz * skip;
+                steps += skip;
+                continue;
+            }
+            steps++;
+            if (contains(nx, ny, nz)) {
+                return steps;
+            }
+            x = nx;
+            y = ny;
+            z = nz;
+        }
+        return -1;
+    }
+
+    private static int distanceToChunkEdge(int c, int d) {
+        if (d > 0) {
+            return MASK - (c & MASK);
+        } else if (d < 0) {
+            return c & MASK;
+        }
+        return 0;
+    }
+
+    private static int bitIndex(int x, int y, int z) {
+        return ((z & MASK) << (SHIFT * 2)) | ((y & MASK) << SHIFT) | (x & MASK);
+    }
+
+    private static long chunkKey(int x, int y, int z) {
+        return PerspectiveUtils.packCell(x, y, z);
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    // Returns the slot holding the key, or the free slot where it would be inserted
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (chunks[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Linear probing deletion, shifting back any entries displaced past the freed slot
+    private void delete(int slot) {
+        int mask = keys.length - 1;
+        chunks[slot] = null;
+        chunkCount--;
+        int next = (slot + 1) & mask;
+        while (chunks[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                chunks[slot] = chunks[next];
+                counts[slot] = counts[next];
+                chunks[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[][] oldChunks = chunks;
+        int[] oldCounts = counts;
+        keys = new long[capacity];
+        chunks = new long[capacity][];
+        counts = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldChunks[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                chunks[slot] = oldChunks[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
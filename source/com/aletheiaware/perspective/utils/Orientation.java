@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import com.aletheiaware.joy.scene.Matrix;
+import com.aletheiaware.joy.scene.Vector;
+
+import java.util.Arrays;
+
+// The 24 rotations which leave the puzzle cube aligned to the axes, so a settled rotation can be stored as a single byte
+public final class Orientation {
+
+    public static final int COUNT = 24;
+    public static final int UNKNOWN = -1;
+
+    private static final float[] X = {1, 0, 0, 1};
+    private static final float[] Y = {0, 1, 0, 1};
+    private static final Matrix IDENTITY = new Matrix();
+    private static final Matrix[] MATRICES = new Matrix[COUNT];
+    // Orientation for the axes the X and Y axes are rotated onto, see getAxis
+    private static final int[] INDICES = new int[36];
+    // Axes each orientation rotates the X and Y axes onto, see getAxis
+    private static final int[] X_AXES = new int[COUNT];
+    private static final int[] Y_AXES = new int[COUNT];
+
+    static {
+        IDENTITY.makeIdentity();
+        Arrays.fill(INDICES, UNKNOWN);
+        Matrix[] turns = new Matrix[3];
+        Vector[] axes = {new Vector(1, 0, 0), new Vector(0, 1, 0), new Vector(0, 0, 1)};
+        for (int i = 0; i < turns.length; i++) {
+            turns[i] = new Matrix();
+            turns[i].makeRotationAxis((float) Math.PI / 2.0f, axes[i]);
+        }
+        float[] temp = new float[4];
+        MATRICES[0] = new Matrix();
+        MATRICES[0].makeIdentity();
+        INDICES[getKey(MATRICES[0], temp)] = 0;
+        // Breadth first through quarter turns, so no orientation is more than a few multiplications from the identity
+        int count = 1;
+        for (int i = 0; i < count && count < COUNT; i++) {
+            for (Matrix t : turns) {
+                Matrix m = new Matrix();
+                m.makeMultiplication(MATRICES[i], t);
+                int key = getKey(m, temp);
+                if (INDICES[key] == UNKNOWN) {
+                    INDICES[key] = count;
+                    MATRICES[count++] = m;
+                }
+            }
+        }
+        for (int key = 0; key < INDICES.length; key++) {
+            int index = INDICES[key];
+            if (index != UNKNOWN) {
+                X_AXES[index] = key / 6;
+                Y_AXES[index] = key % 6;
+            }
+        }
+    }
+
+    private Orientation() {}
+
+    // Index of the direction (+X, -X, +Y, -Y, +Z, -Z) closest to the vector
+    public static int getAxis(float[] v) {
+        float ax = Math.abs(v[0]);
+        float ay = Math.abs(v[1]);
+        float az = Math.abs(v[2]);
+        if (ax >= ay && ax >= az) {
+            return v[0] > 0 ? 0 : 1;
+        } else if (ay >= az) {
+            return v[1] > 0 ? 2 : 3;
+        }
+        return v[2] > 0 ? 4 : 5;
+    }
+
+    private static int getKey(Matrix m, float[] temp) {
+        m.multiply(X, temp);
+        int x = getAxis(temp);
+        m.multiply(Y, temp);
+        int y = getAxis(temp);
+        return x * 6 + y;
+    }
+
+    // Orientation closest to the rotation, temp must hold 4 floats
+    public static int getIndex(Matrix rotation, float[] temp) {
+        return INDICES[getKey(rotation, temp)];
+    }
+
+    // Orientation closest to the rotation even part way through a turn, when the X and Y axes can be closest to the
+    // same axis and getIndex finds none. temp must hold 4 floats
+    public static int getNearest(Matrix rotation, float[] temp) {
+        int index = getIndex(rotation, temp);
+        if (index != UNKNOWN) {
+            return index;
+        }
+        rotation.multiply(X, temp);
+        float x0 = temp[0];
+        float x1 = temp[1];
+        float x2 = temp[2];
+        rotation.multiply(Y, temp);
+        float best = -Float.MAX_VALUE;
+        for (int i = 0; i < COUNT; i++) {
+            float d = getComponent(x0, x1, x2, X_AXES[i]) + getComponent(temp[0], temp[1], temp[2], Y_AXES[i]);
+            if (d > best) {
+                best = d;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // Length of the vector along the direction
+    private static float getComponent(float x, float y, float z, int axis) {
+        float c = axis < 2 ? x : (axis < 4 ? y : z);
+        return (axis & 1) == 0 ? c : -c;
+    }
+
+    // Shared, must not be modified
+    public static Matrix getMatrix(int index) {
+        return MATRICES[index];
+    }
+
+    // Sets the rotation to the orientation without allocating
+    public static void set(Matrix rotation, int index) {
+        rotation.makeMultiplication(IDENTITY, MATRICES[index]);
+    }
+}
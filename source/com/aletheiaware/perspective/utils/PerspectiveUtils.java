@@ -418,6 +418,27 @@ public final class PerspectiveUtils {
                 || Math.abs(vector.getZ()) > size;
     }
 
+    // Packs integer cell coordinates, each in the range -2^20 to 2^20-1, into a single long
+    public static long packCell(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    public static long packCell(Vector v) {
+        return packCell(Math.round(v.getX()), Math.round(v.getY()), Math.round(v.getZ()));
+    }
+
+    public static int unpackX(long cell) {
+        return (int) (cell << 1 >> 43);
+    }
+
+    public static int unpackY(long cell) {
+        return (int) (cell << 22 >> 43);
+    }
+
+    public static int unpackZ(long cell) {
+        return (int) (cell << 43 >> 43);
+    }
+
     public static Location vectorToLocation(Vector v) {
         return Location.newBuilder()
             .setX((int) v.getX())
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import java.util.Arrays;
+
+// Maps packed cell coordinates to element slots without boxing. Several slots may share a cell (eg a sphere
+// resting in a goal) so each cell heads a chain of slots linked through a per-slot next array
+public class SpatialIndex {
+
+    public static final int NONE = -1;
+
+    private long[] keys;
+    private int[] heads;// NONE marks a free slot
+    private int[] next = new int[64];
+    private int count;
+
+    public SpatialIndex() {
+        this(16);
+    }
+
+    public SpatialIndex(int capacity) {
+        int c = Integer.highestOneBit(Math.max(4, capacity * 2 - 1));
+        keys = new long[c];
+        heads = new int[c];
+        Arrays.fill(heads, NONE);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(heads, NONE);
+        count = 0;
+    }
+
+    // First slot at the cell, or NONE
+    public int get(long cell) {
+        return heads[find(cell)];
+    }
+
+    // Next slot sharing a cell with the given slot, or NONE
+    public int next(int slot) {
+        return next[slot];
+    }
+
+    public void put(long cell, int slot) {
+        if (slot >= next.length) {
+            next = Arrays.copyOf(next, Math.max(slot + 1, next.length * 2));
+        }
+        int i = find(cell);
+        if (heads[i] == NONE) {
+            if ((count + 1) * 4 > keys.length * 3) {
+                rehash(keys.length * 2);
+                i = find(cell);
+            }
+            keys[i] = cell;
+            count++;
+        }
+        next[slot] = heads[i];
+        heads[i] = slot;
+    }
+
+    public boolean remove(long cell, int slot) {
+        int i = find(cell);
+        int s = heads[i];
+        int previous = NONE;
+        while (s != NONE && s != slot) {
+            previous = s;
+            s = next[s];
+        }
+        if (s == NONE) {
+            return false;
+        }
+        if (previous == NONE) {
+            heads[i] = next[s];
+            if (heads[i] == NONE) {
+                delete(i);
+            }
+        } else {
+            next[previous] = next[s];
+        }
+        next[s] = NONE;
+        return true;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (heads[i] != NONE && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void delete(int i) {
+        int mask = keys.length - 1;
+        heads[i] = NONE;
+        count--;
+        int j = (i + 1) & mask;
+        while (heads[j] != NONE) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                heads[i] = heads[j];
+                heads[j] = NONE;
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new long[capacity];
+        heads = new int[capacity];
+        Arrays.fill(heads, NONE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != NONE) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                heads[j] = oldHeads[i];
+            }
+        }
+    }
+}
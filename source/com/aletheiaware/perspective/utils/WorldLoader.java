@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Aletheia Ware LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.aletheiaware.perspective.utils;
+
+import com.aletheiaware.perspective.PerspectiveProto.Puzzle;
+import com.aletheiaware.perspective.PerspectiveProto.Solution;
+import com.aletheiaware.perspective.PerspectiveProto.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loads worlds and their saved solutions concurrently, publishing each world as soon as it is ready
+public class WorldLoader {
+
+    public interface Source {
+        InputStream open(String world) throws IOException;
+    }
+
+    // Called from the loader threads, hosts must post to their UI thread
+    public interface Listener {
+        void onWorldLoaded(int index, String name, World world, int[] stars);
+        void onWorldError(int index, String name, Exception e);
+        void onComplete();
+    }
+
+    private final Source source;
+    private final File root;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final List<Future<?>> futures = new ArrayList<>();// Of every load in flight
+
+    public WorldLoader(Source source, File root) {
+        // Daemon threads, so an idle loader which is never closed does not keep the process alive
+        this(source, root, Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "World Loader");
+                t.setDaemon(true);
+                return t;
+            }
+        }), true);
+    }
+
+    public WorldLoader(Source source, File root, ExecutorService executor) {
+        this(source, root, executor, false);
+    }
+
+    private WorldLoader(Source source, File root, ExecutorService executor, boolean ownsExecutor) {
+        this.source = source;
+        this.root = root;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public void load(String[] worlds, final Listener listener) {
+        final AtomicInteger remaining = new AtomicInteger(worlds.length);
+        final List<Future<?>> loading = new ArrayList<>(worlds.length);// Of this load
+        if (worlds.length == 0) {
+            finish(listener, loading);
+            return;
+        }
+        synchronized (futures) {
+            for (int i = 0; i < worlds.length; i++) {
+                final int index = i;
+                final String name = worlds[i];
+                Future<?> future = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            World world = readWorld(name);
+                            int[] stars = loadStars(name, world);
+                            listener.onWorldLoaded(index, name, world, stars);
+                        } catch (Exception e) {
+                            listener.onWorldError(index, name, e);
+                        } finally {
+                            if (remaining.decrementAndGet() == 0) {
+                                finish(listener, loading);
+                            }
+                        }
+                    }
+                });
+                loading.add(future);
+                futures.add(future);
+            }
+        }
+    }
+
+    public void cancel() {
+        synchronized (futures) {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+            futures.clear();
+        }
+    }
+
+    // Stops the threads of a loader which created its own executor, the loader cannot be used afterwards
+    public void close() {
+        cancel();
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Forgets the futures of the finished load, other loads may still be in flight
+    private void finish(Listener listener, List<Future<?>> loading) {
+        synchronized (futures) {
+            futures.removeAll(loading);
+        }
+        listener.onComplete();
+    }
+
+    private World readWorld(String name) throws IOException {
+        try (InputStream in = source.open(name)) {
+            return PerspectiveUtils.readWorld(in);
+        }
+    }
+
+    // Stars for each puzzle in the world, 0 where no solution has been saved
+    public int[] loadStars(String name, World world) throws IOException {
+        int count = world.getPuzzleCount();
+        int[] stars = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Interrupted loading " + name);
+            }
+            Puzzle puzzle = world.getPuzzle(i);
+            Solution solution = PerspectiveUtils.loadSolution(root, name, Integer.toString(i + 1));
+            if (solution != null) {
+                stars[i] = PerspectiveUtils.scoreToStars(solution.getScore(), puzzle.getTarget());
+            }
+        }
+        return stars;
+    }
+}